@@ -1,6 +1,17 @@
 package org.sil.storyproducer
 
 import android.app.Application
+import android.content.ComponentCallbacks2
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleObserver
+import androidx.lifecycle.OnLifecycleEvent
+import androidx.lifecycle.ProcessLifecycleOwner
+import org.sil.storyproducer.model.StoryPersistence
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.BitmapCache
+import org.sil.storyproducer.tools.file.WorkspaceFileListeners
+import org.sil.storyproducer.tools.file.WorkspaceMirror
+import org.sil.storyproducer.tools.media.AudioPlayerPool
 import timber.log.Timber
 
 class App : Application() {
@@ -8,6 +19,30 @@ class App : Application() {
     override fun onCreate() {
         super.onCreate()
         initTimber()
+        ProcessLifecycleOwner.get().lifecycle.addObserver(BackgroundObserver())
+        //Drop the local copies and prepared players of files which are written, renamed or deleted.
+        WorkspaceFileListeners.add { context, relPath, _ -> WorkspaceMirror.invalidate(context, relPath) }
+        WorkspaceFileListeners.add { _, _, uri -> AudioPlayerPool.invalidate(uri) }
+    }
+
+    private class BackgroundObserver : LifecycleObserver {
+        //The process may be killed at any time once the app is in the background.
+        @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+        fun onBackground() {
+            StoryPersistence.flush()
+        }
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        //Stories which are not open, images which are not shown and players which are not playing
+        //can be made again.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            Workspace.evictStories()
+            BitmapCache.logStats()
+            BitmapCache.clear()
+            AudioPlayerPool.clear()
+        }
     }
 
     fun initTimber() {
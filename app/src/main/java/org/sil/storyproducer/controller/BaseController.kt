@@ -1,12 +1,19 @@
 package org.sil.storyproducer.controller
 
 import android.content.Context
-import androidx.documentfile.provider.DocumentFile
+import io.reactivex.Flowable
 import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.schedulers.Schedulers
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.StoryChangeSet
+import org.sil.storyproducer.model.StoryHeader
+import org.sil.storyproducer.model.StoryManifest
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.DocumentUriCache
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+import org.sil.storyproducer.tools.file.WorkspaceIndex
 import org.sil.storyproducer.view.BaseActivityView
 import timber.log.Timber
 
@@ -16,66 +23,153 @@ open class BaseController(
 ) {
 
     protected val subscriptions = CompositeDisposable()
+    @Volatile
     private var cancelUpdate = false
 
+    /**
+     * How many stories are read from the workspace at the same time.
+     */
+    var scanParallelism = Runtime.getRuntime().availableProcessors()
+
     fun cancelUpdate() {
         cancelUpdate = true
         view.showCancellingReadingTemplatesDialog()
     }
 
     fun updateStories() {
-        Workspace.Stories.clear()
-
-        val storyFiles = Workspace.storyFiles()
+        cancelUpdate = false
+        Workspace.clearStories()
+        //Pick up any changes made to the workspace outside of the app.  Only the workspace folder
+        //is listed again here; a story folder is listed again by the scan if it has changed.
+        DocumentUriCache.invalidate()
+        WorkspaceIndex.onChildrenChanged("")
 
-        if (storyFiles.size > 0) {
-            updateStoriesAsync(1, storyFiles.size, storyFiles)
-        } else {
+        val manifest = StoryManifest.load(context)
+        if (manifest.isNotEmpty()) {
+            //Show the stories from the last launch now, and bring them up to date in the background.
+            Workspace.storyHeaders.addAll(manifest)
+            Workspace.sortStoriesByTitle()
+            Workspace.phases = Workspace.buildPhases()
+            Workspace.activePhaseIndex = 0
             onStoriesUpdated()
         }
-    }
 
-    fun updateStoriesAsync(current: Int, total: Int, files: List<DocumentFile>) {
-        view.showReadingTemplatesDialog(this)
-        updateStoryAsync(files, 0, current, total)
+        subscriptions.add(
+                Single.fromCallable { Workspace.storyFiles(context) }
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe({ storyFiles ->
+                            updateStoriesAsync(storyFiles, manifest.associateBy { it.title }, manifest.isEmpty())
+                        }, { th ->
+                            Timber.e(th)
+                            if (manifest.isEmpty()) onStoriesUpdated()
+                        })
+        )
     }
 
-    fun updateStoryAsync(files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        val file = files.get(index)
-        view.updateReadingTemplatesDialog(current, total, file.name.orEmpty())
+    /**
+     * Scan the story files, building up to [scanParallelism] stories at a time.
+     * Stories with a [StoryHeader] in [known] whose folder, or else whose project file, has not
+     * changed are not read again.  When all are done, the new and changed headers are put in
+     * [Workspace.storyHeaders], the headers of stories which are gone are taken out, and the
+     * [StoryChangeSet] is passed to [Workspace.onStoryHeadersChanged].
+     * @param showProgress whether to show the progress dialog and then the next screen, or else
+     * update the story list which is already shown.
+     */
+    fun updateStoriesAsync(files: List<WorkspaceDocument>, known: Map<String, StoryHeader> = mapOf(),
+                           showProgress: Boolean = true) {
+        if (showProgress) view.showReadingTemplatesDialog(this)
+        //Only touched on the main thread.
+        val results = arrayOfNulls<ScannedStory>(files.size)
+        var scanned = 0
+
         subscriptions.add(
-                Single.fromCallable {
-                    Workspace.buildStory(context, file)?.also {
-                        Workspace.Stories.add(it)
-                    }
-                }
-                        .subscribeOn(Schedulers.io())
+                Flowable.fromIterable(files.withIndex())
+                        .flatMapSingle({ (index, file) -> scanStory(index, file, known[file.name]) }, false, scanParallelism)
                         .observeOn(AndroidSchedulers.mainThread())
-                        .subscribe({ onUpdateStoryAsync(files, index, current, total) }, { onUpdateStoryAsyncError(it, files, index, current, total) })
+                        .subscribe({ result ->
+                            results[result.index] = result
+                            scanned++
+                            if (showProgress) view.updateReadingTemplatesDialog(scanned, files.size, result.name)
+                        }, { th ->
+                            Timber.e(th)
+                            onLastStoryUpdated(results, known, showProgress)
+                        }, {
+                            onLastStoryUpdated(results, known, showProgress)
+                        })
         )
     }
 
-    private fun onUpdateStoryAsync(files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        val nextIndex = index + 1
-        if (!cancelUpdate && nextIndex < files.size) {
-            updateStoryAsync(files, nextIndex, current + 1, total)
-        } else {
-            onLastStoryUpdated()
+    private fun scanStory(index: Int, file: WorkspaceDocument, known: StoryHeader?): Single<ScannedStory> {
+        return Single.fromCallable {
+            if (known != null && file.isDirectory) {
+                if (known.isCurrentDirectory(file)) {
+                    //Nothing was added to or removed from the story folder, so only its project
+                    //folder needs to be listed again, to see whether the project file changed.
+                    WorkspaceIndex.refresh("${file.name}/$PROJECT_DIR")
+                } else {
+                    WorkspaceIndex.refresh(file.name)
+                }
+                if (known.isCurrent(StoryManifest.projectFile(context, file.name))) {
+                    return@fromCallable if (known.isCurrentDirectory(file)) {
+                        ScannedStory(index, file.name, known, ScanResult.UNCHANGED)
+                    } else {
+                        ScannedStory(index, file.name, known.withDirectory(file), ScanResult.CHECKED)
+                    }
+                }
+                //After cancelling, keep the old header of a story which has not been started.
+                if (cancelUpdate) return@fromCallable ScannedStory(index, file.name, known, ScanResult.UNCHANGED)
+            }
+            //After cancelling, skip the files which have not been started.
+            //Only the header is kept; the whole story is read again when it is opened.
+            val story = if (cancelUpdate) null else Workspace.buildStory(context, file)
+            val header = story?.let { StoryHeader.fromStory(it, StoryManifest.projectFile(context, it.title)) }
+            if (file.isDirectory) header?.directoryLastModified = file.lastModified
+            ScannedStory(index, file.name, header, ScanResult.BUILT)
         }
+                .onErrorReturn { th ->
+                    Timber.e(th)
+                    ScannedStory(index, file.name, null, ScanResult.BUILT)
+                }
+                .subscribeOn(Schedulers.io())
     }
 
-    private fun onUpdateStoryAsyncError(th: Throwable, files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        Timber.e(th)
-        onUpdateStoryAsync(files, index, current, total)
+    private enum class ScanResult {
+        //Neither the folder nor the project file has changed since the last scan.
+        UNCHANGED,
+        //The folder has changed, but not the project file.  The header is a new copy.
+        CHECKED,
+        //The story was read, or could not be.
+        BUILT
     }
 
-    private fun onLastStoryUpdated() {
-        Workspace.sortStoriesByTitle()
+    private class ScannedStory(val index: Int, val name: String, val header: StoryHeader?, val result: ScanResult)
+
+    private fun onLastStoryUpdated(results: Array<ScannedStory?>, known: Map<String, StoryHeader>, showProgress: Boolean) {
+        val scanned = results.filterNotNull()
+        val built = scanned.filter { it.result == ScanResult.BUILT }.mapNotNull { it.header }
+        val titles = scanned.mapNotNull { it.header?.title }.toSet()
+        //After cancelling, the stories which were not scanned are not known to be gone.
+        val changes = StoryChangeSet.between(known, built, titles, !cancelUpdate)
+        val checked = scanned.filter { it.result == ScanResult.CHECKED }.mapNotNull { it.header }
+        //Stories opened while the scan ran stay loaded; they were read after it began.
+        Workspace.applyStoryChanges(changes, checked)
         Workspace.phases = Workspace.buildPhases()
         Workspace.activePhaseIndex = 0
+        Timber.i("Scanned ${scanned.size} stories: $changes")
+
+        //A cancelled scan is missing stories, so keep the manifest from before it.
+        if (!cancelUpdate && (!changes.isEmpty() || checked.isNotEmpty())) {
+            val headers = Workspace.storyHeaders.toList()
+            subscriptions.add(Schedulers.io().scheduleDirect { StoryManifest.replace(context, headers) })
+        }
 
-        view.hideReadingTemplatesDialog()
-        onStoriesUpdated()
+        if (showProgress) {
+            view.hideReadingTemplatesDialog()
+            onStoriesUpdated()
+        } else if (!changes.isEmpty()) {
+            Workspace.onStoryHeadersChanged?.invoke(changes)
+        }
     }
 
     private fun onStoriesUpdated() {
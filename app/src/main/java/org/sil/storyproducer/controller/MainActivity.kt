@@ -11,6 +11,7 @@ import android.util.Log
 import android.view.Menu
 import android.view.MenuItem
 import android.webkit.WebView
+import android.widget.Toast
 import androidx.appcompat.app.ActionBar
 import androidx.appcompat.widget.Toolbar
 import androidx.core.view.GravityCompat
@@ -22,10 +23,11 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.activity.BaseActivity
 import org.sil.storyproducer.model.Phase
 import org.sil.storyproducer.model.PhaseType
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StoryHeader
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.Network.ConnectivityStatus
 import org.sil.storyproducer.tools.Network.VolleySingleton
+import org.sil.storyproducer.tools.file.WorkspaceMirror
 import java.io.Serializable
 
 class MainActivity : BaseActivity(), Serializable {
@@ -67,6 +69,18 @@ class MainActivity : BaseActivity(), Serializable {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+        //The stories can change when the workspace scan finishes after the list is shown.
+        Workspace.onStoryHeadersChanged = { storyList.notifyDataSetChanged() }
+        storyList.notifyDataSetChanged()
+    }
+
+    override fun onPause() {
+        super.onPause()
+        Workspace.onStoryHeadersChanged = null
+    }
+
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
         menuInflater.inflate(R.menu.menu_with_help, menu)
         return true
@@ -75,7 +89,12 @@ class MainActivity : BaseActivity(), Serializable {
     /**
      * move to the chosen story
      */
-    fun switchToStory(story: Story) {
+    fun switchToStory(header: StoryHeader) {
+        val story = Workspace.loadStory(this, header)
+        if (story == null) {
+            Toast.makeText(this, getString(R.string.story_not_readable, header.title), Toast.LENGTH_LONG).show()
+            return
+        }
         Workspace.activeStory = story
         val intent = Intent(this.applicationContext, Workspace.activePhase.getTheClass())
         startActivity(intent)
@@ -128,6 +147,7 @@ class MainActivity : BaseActivity(), Serializable {
         mDrawerLayout!!.setDrawerLockMode(androidx.drawerlayout.widget.DrawerLayout.LOCK_MODE_LOCKED_CLOSED)
         val navigationView: NavigationView = findViewById(R.id.nav_view)
         navigationView.setNavigationItemSelectedListener(::onNavigationItemSelected)
+        navigationView.menu.findItem(R.id.nav_mirror).isChecked = WorkspaceMirror.isEnabled(this)
     }
 
     private fun onNavigationItemSelected(menuItem: MenuItem): Boolean {
@@ -148,6 +168,10 @@ class MainActivity : BaseActivity(), Serializable {
             R.id.nav_registration -> {
                 showRegistration()
             }
+            R.id.nav_mirror -> {
+                menuItem.isChecked = !menuItem.isChecked
+                WorkspaceMirror.setEnabled(this, menuItem.isChecked)
+            }
             R.id.nav_about -> {
                 showAboutDialog()
             }
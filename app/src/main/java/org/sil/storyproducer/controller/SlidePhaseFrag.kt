@@ -75,6 +75,11 @@ abstract class SlidePhaseFrag : androidx.fragment.app.Fragment() {
             referencePlayButton!!.setBackgroundResource(R.drawable.ic_play_arrow_white_36dp)
             referenceAudioPlayer.stopAudio()
         })
+        //The duration is only known once the audio is prepared.
+        referenceAudioPlayer.onPrepared {
+            refPlaybackDuration = referenceAudioPlayer.audioDurationInMilliseconds
+            refPlaybackSeekBar?.max = refPlaybackDuration
+        }
 
         refPlaybackSeekBar = rootView!!.findViewById(R.id.videoSeekBar)
         mSeekBarTimer = Timer()
@@ -172,8 +177,8 @@ abstract class SlidePhaseFrag : androidx.fragment.app.Fragment() {
                     referencePlayButton!!.setBackgroundResource(R.drawable.ic_pause_white_48dp)
                     Toast.makeText(context, R.string.draft_playback_lwc_audio, Toast.LENGTH_SHORT).show()
                     when(Workspace.activePhase.phaseType){
-                        PhaseType.DRAFT -> saveLog(activity!!.getString(R.string.LWC_PLAYBACK))
-                        PhaseType.COMMUNITY_CHECK -> saveLog(activity!!.getString(R.string.DRAFT_PLAYBACK))
+                        PhaseType.DRAFT -> saveLog(activity!!, activity!!.getString(R.string.LWC_PLAYBACK))
+                        PhaseType.COMMUNITY_CHECK -> saveLog(activity!!, activity!!.getString(R.string.DRAFT_PLAYBACK))
                         else -> {}
                     }
                 }
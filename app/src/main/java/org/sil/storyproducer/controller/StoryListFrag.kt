@@ -9,20 +9,24 @@ import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.*
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
 import org.sil.storyproducer.R
 import org.sil.storyproducer.activity.BaseActivity
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StoryHeader
 import org.sil.storyproducer.model.Workspace
-import org.sil.storyproducer.service.SlideService
+import org.sil.storyproducer.service.ThumbnailLoader
 
 class StoryListFrag : androidx.fragment.app.Fragment() {
 
     lateinit var adapter: ListAdapter
+    private var showingStories = false
 
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
         super.onCreate(savedInstanceState)
 
-        if (Workspace.Stories.isEmpty()) {
+        showingStories = Workspace.storyHeaders.isNotEmpty()
+        if (!showingStories) {
             val view = inflater.inflate(R.layout.fragment_no_stories, container, false)
 
             view!!.findViewById<TextView>(R.id.stories_not_found_text).text =
@@ -37,25 +41,32 @@ class StoryListFrag : androidx.fragment.app.Fragment() {
 
         val lfview = inflater.inflate(R.layout.activity_list_view, container, false)
 
-        adapter = ListAdapter(context!!, R.layout.story_list_item, Workspace.Stories)
+        adapter = ListAdapter(context!!, R.layout.story_list_item, Workspace.storyHeaders)
 
         val listView = lfview.findViewById<ListView>(R.id.story_list_view)
         // Assign adapter to ListView
         listView.adapter = adapter
 
         //TODO remove "switchtostory" call.  That is still from the old template way.
-        listView.onItemClickListener = AdapterView.OnItemClickListener { _, _, position, _ -> (activity as MainActivity).switchToStory(Workspace.Stories[position]) }
+        listView.onItemClickListener = AdapterView.OnItemClickListener { _, _, position, _ -> (activity as MainActivity).switchToStory(Workspace.storyHeaders[position]) }
 
         return lfview
     }
 
     fun notifyDataSetChanged() {
-        adapter.notifyDataSetChanged()
+        if (showingStories == Workspace.storyHeaders.isNotEmpty()) {
+            if (showingStories) adapter.notifyDataSetChanged()
+        } else if (isAdded) {
+            //Switch between the list and the "no stories" view.
+            fragmentManager?.beginTransaction()?.detach(this)?.attach(this)?.commit()
+        }
     }
 
 }
 
-class ListAdapter(context: Context, private val resourceId: Int, private val stories: MutableList<Story>) : ArrayAdapter<Story>(context, resourceId, stories) {
+class ListAdapter(context: Context, private val resourceId: Int, private val stories: MutableList<StoryHeader>) : ArrayAdapter<StoryHeader>(context, resourceId, stories) {
+
+    private val thumbnailSize = context.resources.getDimensionPixelSize(R.dimen.story_list_image_size)
 
     override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
         var row = convertView
@@ -74,10 +85,10 @@ class ListAdapter(context: Context, private val resourceId: Int, private val sto
         if(position <= stories.size){
             val story = stories[position]
             holder.txtTitle.text = story.title
-            //TODO put th number 25 in some configuration.  What if the images are different sizes?
-            //Use the "second" image, because the first is just for the title screen.
-            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, 25, story))
-            holder.txtSubTitle.text = story.slides[0].subtitle
+            //Stop loading the image of the story this row showed before.
+            holder.thumbnailLoad.dispose()
+            holder.thumbnailLoad = ThumbnailLoader.load(context, holder.imgIcon, story, thumbnailSize)
+            holder.txtSubTitle.text = story.subtitle
         }
 
         return row
@@ -87,6 +98,7 @@ class ListAdapter(context: Context, private val resourceId: Int, private val sto
         var imgIcon: ImageView = view.findViewById(R.id.story_list_image)
         var txtTitle: TextView = view.findViewById(R.id.story_list_title)
         var txtSubTitle: TextView = view.findViewById(R.id.story_list_subtitle)
+        var thumbnailLoad: Disposable = Disposables.disposed()
     }
 
 }
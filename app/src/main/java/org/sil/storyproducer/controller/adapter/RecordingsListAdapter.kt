@@ -235,8 +235,8 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
                     audioPlayer.setStorySource(context, getRecordedAudioFiles()[pos])
                     audioPlayer.playAudio()
                     when (Workspace.activePhase.phaseType) {
-                        PhaseType.DRAFT -> saveLog(context.getString(R.string.DRAFT_PLAYBACK))
-                        PhaseType.COMMUNITY_CHECK -> saveLog(context.getString(R.string.COMMENT_PLAYBACK))
+                        PhaseType.DRAFT -> saveLog(context, context.getString(R.string.DRAFT_PLAYBACK))
+                        PhaseType.COMMUNITY_CHECK -> saveLog(context, context.getString(R.string.COMMENT_PLAYBACK))
                         else -> {
                         }
                     }
@@ -122,6 +122,7 @@ class ConsultantCheckFrag : SlidePhaseFrag() {
         comChkCB.setOnCheckedChangeListener { _, checked -> lla.updateList(learnCB.isChecked, draftCB.isChecked, checked) }
         alertDialog.setView(dialogLayout)
         logDialog = alertDialog.create()
+        logDialog?.setOnDismissListener { lla.dispose() }
         exit.setOnClickListener {
             logDialog?.dismiss()
         }
@@ -5,8 +5,12 @@ import android.content.Context
 import android.graphics.Rect
 import android.os.Bundle
 import android.text.Editable
+import android.text.format.DateUtils
 import android.text.TextWatcher
+import android.view.Gravity
 import android.view.MotionEvent
+import android.view.SurfaceHolder
+import android.view.SurfaceView
 import android.view.View
 import android.view.ViewGroup
 import android.view.inputmethod.InputMethodManager
@@ -17,6 +21,10 @@ import org.sil.storyproducer.model.VIDEO_DIR
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.file.workspaceRelPathExists
 import org.sil.storyproducer.tools.media.story.AutoStoryMaker
+import org.sil.storyproducer.tools.media.story.ExportPhase
+import org.sil.storyproducer.tools.media.story.ExportProgress
+import org.sil.storyproducer.tools.media.story.ExportProgressListener
+import org.sil.storyproducer.tools.media.story.StoryPreviewer
 import org.sil.storyproducer.tools.stripForFilename
 
 
@@ -32,7 +40,9 @@ class CreateActivity : PhaseBaseActivity() {
     private lateinit var mCheckboxSong: CheckBox
     private lateinit var mButtonStart: Button
     private lateinit var mButtonCancel: Button
+    private lateinit var mButtonPreview: Button
     private lateinit var mProgressBar: ProgressBar
+    private lateinit var mTextStatus: TextView
     private lateinit var mButtonCredits: Button
 
     private val mOutputPath: String get() {
@@ -48,39 +58,9 @@ class CreateActivity : PhaseBaseActivity() {
         return "$num${name}_$ethno$fx$px$mv$tx$sg.mp4"
     }
 
-    private var mProgressUpdater: Thread? = null
-
-    private val PROGRESS_UPDATER = Runnable {
-        var isDone = false
-        while (!isDone) {
-            try {
-                Thread.sleep(100)
-            } catch (e: InterruptedException) {
-                //If progress updater is interrupted, just stop.
-                return@Runnable
-            }
-
-            var progress: Double
-            synchronized(storyMakerLock) {
-                //Stop if storyMaker was cancelled by someone else.
-                if (storyMaker == null) {
-                    updateProgress(0)
-                    return@Runnable
-                }
-
-                progress = storyMaker!!.progress
-                isDone = storyMaker!!.isDone
-            }
-            updateProgress((progress * PROGRESS_MAX).toInt())
-        }
-        val isSuccess = storyMaker!!.isSuccess
-
-        runOnUiThread {
-            stopExport()
-            if(isSuccess)
-                Toast.makeText(baseContext, "Video created!", Toast.LENGTH_LONG).show()
-            else
-                Toast.makeText(baseContext, "Error!", Toast.LENGTH_LONG).show()
+    private val mProgressListener = object : ExportProgressListener {
+        override fun onExportProgress(progress: ExportProgress) {
+            runOnUiThread { showProgress(progress) }
         }
     }
 
@@ -102,6 +82,7 @@ class CreateActivity : PhaseBaseActivity() {
     }
 
     private var storyMaker: AutoStoryMaker? = null
+    private var mPreviewer: StoryPreviewer? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -130,7 +111,10 @@ class CreateActivity : PhaseBaseActivity() {
     }
 
     override fun onPause() {
-        mProgressUpdater!!.interrupt()
+        mPreviewer?.stop()
+        synchronized(storyMakerLock) {
+            storyMaker?.progressListener = null
+        }
         savePreferences()
 
         super.onPause()
@@ -194,12 +178,14 @@ class CreateActivity : PhaseBaseActivity() {
 
         mButtonStart = findViewById(R.id.button_export_start)
         mButtonCancel = findViewById(R.id.button_export_cancel)
+        mButtonPreview = findViewById(R.id.button_export_preview)
         mButtonCredits = findViewById(R.id.button_local_credits)
         setOnClickListeners()
 
         mProgressBar = findViewById(R.id.progress_bar_export)
         mProgressBar.max = PROGRESS_MAX
         mProgressBar.progress = 0
+        mTextStatus = findViewById(R.id.text_export_status)
 
         // Safety check to ensure that the credits exist
         if(Workspace.activeStory.localCredits.isEmpty()) {
@@ -238,6 +224,13 @@ class CreateActivity : PhaseBaseActivity() {
             lockButtons()
         }
 
+        mButtonPreview.setOnClickListener {
+            if (!buttonLocked) {
+                startPreview()
+            }
+            lockButtons()
+        }
+
         mButtonCredits.setOnClickListener{
             if(!buttonLocked) {
                 val editText = EditText(this)
@@ -301,6 +294,7 @@ class CreateActivity : PhaseBaseActivity() {
         mLayoutConfiguration.visibility = visibilityPreExport
         mLayoutCancel.visibility = visibilityWhileExport
         mButtonStart.visibility = visibilityPreExport
+        mButtonPreview.visibility = visibilityPreExport
 
         if (mCheckboxPictures.isChecked) {
             mCheckboxKBFX.visibility = View.VISIBLE
@@ -398,19 +392,90 @@ class CreateActivity : PhaseBaseActivity() {
     private fun startExport() {
         savePreferences()
         synchronized(storyMakerLock) {
-            storyMaker = AutoStoryMaker(this)
-
-            storyMaker!!.mIncludeBackgroundMusic = mCheckboxSoundtrack.isChecked
-            storyMaker!!.mIncludePictures = mCheckboxPictures.isChecked
-            storyMaker!!.mIncludeText = mCheckboxText.isChecked
-            storyMaker!!.mIncludeKBFX = mCheckboxKBFX.isChecked
-            storyMaker!!.mIncludeSong = mCheckboxSong.isChecked
-
+            storyMaker = createStoryMaker()
             storyMaker!!.videoRelPath = mOutputPath
         }
 
-        storyMaker!!.start()
         watchProgress()
+        storyMaker!!.start()
+    }
+
+    /**
+     * Make a story maker with the options which are checked.
+     */
+    private fun createStoryMaker(): AutoStoryMaker {
+        val maker = AutoStoryMaker(this)
+
+        maker.mIncludeBackgroundMusic = mCheckboxSoundtrack.isChecked
+        maker.mIncludePictures = mCheckboxPictures.isChecked
+        maker.mIncludeText = mCheckboxText.isChecked
+        maker.mIncludeKBFX = mCheckboxKBFX.isChecked
+        maker.mIncludeSong = mCheckboxSong.isChecked
+
+        return maker
+    }
+
+    /**
+     * Play one slide the way it will look and sound in the video, without making the video, so
+     * the motion and music levels can be checked in a few seconds.
+     */
+    private fun startPreview() {
+        val maker = createStoryMaker()
+        //Finding the length of every slide's audio reads each file.
+        Thread(Runnable {
+            val previewer = maker.createPreviewer() ?: return@Runnable
+            runOnUiThread {
+                if (isFinishing) {
+                    previewer.close()
+                } else {
+                    showPreview(previewer)
+                }
+            }
+        }).start()
+    }
+
+    private fun showPreview(previewer: StoryPreviewer) {
+        mPreviewer?.close()
+        mPreviewer = previewer
+
+        val surfaceView = SurfaceView(this)
+        val slidePicker = NumberPicker(this)
+        slidePicker.minValue = 1
+        slidePicker.maxValue = previewer.slideCount
+        slidePicker.value = (Workspace.activeSlideNum + 1).coerceIn(1, previewer.slideCount)
+
+        val play = {
+            if (surfaceView.holder.surface.isValid) {
+                previewer.start(surfaceView.holder.surface, slidePicker.value - 1, slidePicker.value - 1)
+            }
+        }
+        surfaceView.holder.addCallback(object : SurfaceHolder.Callback {
+            override fun surfaceCreated(holder: SurfaceHolder) = play()
+            override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {}
+            override fun surfaceDestroyed(holder: SurfaceHolder) = previewer.stop()
+        })
+        //Tap the picture to play the slide again.
+        surfaceView.setOnClickListener { play() }
+        slidePicker.setOnValueChangedListener { _, _, _ -> play() }
+
+        val layout = LinearLayout(this)
+        layout.orientation = LinearLayout.VERTICAL
+        val surfaceWidth = resources.displayMetrics.widthPixels * 3 / 4
+        val surfaceParams = LinearLayout.LayoutParams(surfaceWidth, surfaceWidth * previewer.height / previewer.width)
+        surfaceParams.gravity = Gravity.CENTER_HORIZONTAL
+        layout.addView(surfaceView, surfaceParams)
+        layout.addView(slidePicker)
+
+        AlertDialog.Builder(this)
+                .setTitle(getString(R.string.export_preview))
+                .setView(layout)
+                .setPositiveButton(getString(R.string.ok), null)
+                .setOnDismissListener {
+                    previewer.close()
+                    if (mPreviewer == previewer) mPreviewer = null
+                }
+                .create()
+                .show()
     }
 
     private fun stopExport() {
@@ -425,13 +490,52 @@ class CreateActivity : PhaseBaseActivity() {
     }
 
     private fun watchProgress() {
-        mProgressUpdater = Thread(PROGRESS_UPDATER)
-        mProgressUpdater!!.start()
+        var isDone = false
+        var isSuccess = false
+        synchronized(storyMakerLock) {
+            if (storyMaker == null) {
+                mProgressBar.progress = 0
+                mTextStatus.text = ""
+            } else {
+                storyMaker!!.progressListener = mProgressListener
+                //The export may have finished while nobody was listening.
+                isDone = storyMaker!!.isDone
+                isSuccess = storyMaker!!.isSuccess
+            }
+        }
         toggleVisibleElements()
+        if (isDone) {
+            finishExport(isSuccess)
+        }
+    }
+
+    private fun showProgress(progress: ExportProgress) {
+        synchronized(storyMakerLock) {
+            //Ignore late events from an export which was cancelled.
+            if (storyMaker == null) return
+        }
+
+        mProgressBar.progress = (progress.overallProgress * PROGRESS_MAX).toInt()
+        val remaining = if (progress.etaMs >= 0) DateUtils.formatElapsedTime(progress.etaMs / 1000) else "…"
+        mTextStatus.text = when (progress.phase) {
+            ExportPhase.SETUP -> getString(R.string.export_status_setup)
+            ExportPhase.RENDER -> getString(R.string.export_status_render, remaining)
+            ExportPhase.RENDITION -> getString(R.string.export_status_rendition, remaining)
+            ExportPhase.COPY_OUT -> getString(R.string.export_status_copy_out)
+            ExportPhase.DONE -> ""
+        }
+
+        if (progress.phase == ExportPhase.DONE) {
+            finishExport(progress.isSuccess)
+        }
     }
 
-    private fun updateProgress(progress: Int) {
-        runOnUiThread { mProgressBar.progress = progress }
+    private fun finishExport(isSuccess: Boolean) {
+        stopExport()
+        if(isSuccess)
+            Toast.makeText(baseContext, "Video created!", Toast.LENGTH_LONG).show()
+        else
+            Toast.makeText(baseContext, "Error!", Toast.LENGTH_LONG).show()
     }
 
     /**
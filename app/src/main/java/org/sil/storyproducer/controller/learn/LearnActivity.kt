@@ -1,12 +1,18 @@
 package org.sil.storyproducer.controller.learn
 
-import android.media.MediaPlayer
 import android.os.Bundle
 import com.google.android.material.snackbar.Snackbar
 import androidx.core.content.res.ResourcesCompat
+import androidx.lifecycle.Lifecycle
 import android.view.View
 import android.widget.*
 import android.widget.SeekBar.OnSeekBarChangeListener
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import io.reactivex.Single
+import io.reactivex.android.schedulers.AndroidSchedulers
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import io.reactivex.schedulers.Schedulers
 import org.sil.storyproducer.R
 import org.sil.storyproducer.controller.phase.PhaseBaseActivity
 import org.sil.storyproducer.model.SLIDE_NUM
@@ -16,8 +22,8 @@ import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.model.logging.saveLearnLog
 import org.sil.storyproducer.tools.file.getStoryUri
 import org.sil.storyproducer.tools.file.storyRelPathExists
-import org.sil.storyproducer.tools.media.AudioPlayer
 import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.story.StoryNarrationPlayer
 import org.sil.storyproducer.tools.toolbar.PlayBackRecordingToolbar
 import java.util.*
 import kotlin.math.min
@@ -28,7 +34,12 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
     private var videoSeekBar: SeekBar? = null
     private var mSeekBarTimer = Timer()
 
-    private var narrationPlayer: AudioPlayer = AudioPlayer()
+    private var narrationPlayer: StoryNarrationPlayer? = null
+    private var narrationPaths: List<String?> = listOf()
+    private var narrationDurationsUs: List<Long>? = null
+    private var durationsLoad: Disposable = Disposables.disposed()
+    //Whether the seek bar was moved away from where the narration player is.
+    private var needsSeek = false
 
     private var isVolumeOn = true
     private var isWatchedOnce = false
@@ -39,7 +50,6 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
     private var seekbarStartTime: Long = -1
     private var logStartTime: Long = -1
     private var curPos: Int = -1 //set to -1 so that the first slide will register as "different"
-    private val slideDurations: MutableList<Int> = ArrayList()
     private val slideStartTimes: MutableList<Int> = ArrayList()
 
     private var isLogging = false
@@ -57,8 +67,16 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
         //setup seek bar listenters
         videoSeekBar = findViewById(R.id.videoSeekBar)
         videoSeekBar!!.setOnSeekBarChangeListener(object : OnSeekBarChangeListener {
-            override fun onStopTrackingTouch(sBar: SeekBar) {}
-            override fun onStartTrackingTouch(sBar: SeekBar) {}
+            private var wasPlaying = false
+            override fun onStopTrackingTouch(sBar: SeekBar) {
+                //Decode from the new slide once, when the user lets go.
+                if (wasPlaying) playStoryAudio()
+                wasPlaying = false
+            }
+            override fun onStartTrackingTouch(sBar: SeekBar) {
+                wasPlaying = narrationPlayer?.isPlaying == true
+                if (wasPlaying) pauseStoryAudio()
+            }
             override fun onProgressChanged(sBar: SeekBar, progress: Int, fromUser: Boolean) {
                 if (fromUser) {
                     if (recordingToolbar.isRecording || recordingToolbar.isAudioPlaying) {
@@ -66,15 +84,11 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
                         seekbarStartTime = System.currentTimeMillis() - videoSeekBar!!.progress
                         setSlideFromSeekbar()
                     } else {
-                        if (narrationPlayer.isAudioPlaying) {
-                            pauseStoryAudio()
-                            playStoryAudio()
-                        } else {
-                            setSlideFromSeekbar()
-                        }
+                        setSlideFromSeekbar()
                         //always start at the beginning of the slide.
-                        if (slideStartTimes.size > curPos)
+                        if (curPos >= 0 && slideStartTimes.size > curPos)
                             videoSeekBar!!.progress = slideStartTimes[curPos]
+                        needsSeek = true
                     }
                 }
             }
@@ -86,10 +100,10 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
         volumeSwitch.isChecked = true
         volumeSwitch.setOnCheckedChangeListener { _, isChecked ->
             isVolumeOn = if (isChecked) {
-                narrationPlayer.setVolume(1.0f)
+                narrationPlayer?.setVolume(1.0f)
                 true
             } else {
-                narrationPlayer.setVolume(0.0f)
+                narrationPlayer?.setVolume(0.0f)
                 false
             }
         }
@@ -97,48 +111,95 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
         //has learn already been watched?
         isWatchedOnce = storyRelPathExists(this,Workspace.activeStory.learnAudioFile)
 
-        //get story audio duration
+        //get the narration of each slide
         numOfSlides = 0
-        slideStartTimes.add(0)
+        val narrationFiles: MutableList<String> = mutableListOf()
         for (s in story.slides) {
             //don't play the copyright slides.
             if (s.slideType in arrayOf(SlideType.FRONTCOVER, SlideType.NUMBEREDPAGE)) {
                 numOfSlides++
-                slideDurations.add((MediaHelper.getAudioDuration(this,
-                        getStoryUri(Story.getFilename(s.narrationFile))!!) / 1000).toInt())
-                slideStartTimes.add(slideStartTimes.last() + slideDurations.last())
+                narrationFiles.add(Story.getFilename(s.narrationFile))
             } else {
                 break
             }
         }
-        videoSeekBar?.max = slideStartTimes.last()
+        loadNarrationDurations(narrationFiles)
 
         invalidateOptionsMenu()
     }
 
+    /**
+     * Reading the durations opens every narration file, so it is done in the background.
+     * Playing is enabled once they are known.
+     */
+    private fun loadNarrationDurations(narrationFiles: List<String>) {
+        playButton?.isEnabled = false
+        val appContext = applicationContext
+        durationsLoad = Single.fromCallable {
+            narrationFiles.map { file ->
+                if (storyRelPathExists(appContext, file)) {
+                    Pair(file, MediaHelper.getAudioDuration(appContext, getStoryUri(file)!!))
+                } else {
+                    Pair(null, 0L)
+                }
+            }
+        }
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({ narrations ->
+                    narrationPaths = narrations.map { it.first }
+                    narrationDurationsUs = narrations.map { it.second }
+                    slideStartTimes.clear()
+                    slideStartTimes.add(0)
+                    for (narration in narrations) {
+                        slideStartTimes.add(slideStartTimes.last() + (narration.second / 1000).toInt())
+                    }
+                    videoSeekBar?.max = slideStartTimes.last()
+                    playButton?.isEnabled = true
+                    if (narrationPlayer == null && lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                        createNarrationPlayer()
+                    }
+                    setSlideFromSeekbar()
+                }, { th ->
+                    FirebaseCrashlytics.getInstance().recordException(th)
+                })
+    }
+
+    private fun createNarrationPlayer() {
+        val durationsUs = narrationDurationsUs ?: return
+        val player = StoryNarrationPlayer(this, narrationPaths, durationsUs)
+        player.setVolume(if (isVolumeOn) 1.0f else 0.0f)
+        player.onSlideChanged = { slide ->
+            if (slide != curPos) showSlide(slide)
+        }
+        player.onCompletion = {
+            //at the end of video so special case
+            videoSeekBar?.progress = videoSeekBar!!.max
+            pauseStoryAudio()
+            showStartPracticeSnackBar()
+        }
+        narrationPlayer = player
+        needsSeek = true
+    }
+
     public override fun onPause() {
         super.onPause()
         pauseStoryAudio()
-        narrationPlayer.release()
+        mSeekBarTimer.cancel()
+        //Let go of the audio track while in the background; the player is made again on resume.
+        narrationPlayer?.close()
+        narrationPlayer = null
+    }
+
+    override fun onDestroy() {
+        durationsLoad.dispose()
+        super.onDestroy()
     }
 
     public override fun onResume() {
         super.onResume()
 
-        narrationPlayer = AudioPlayer()
-        narrationPlayer.onPlayBackStop(MediaPlayer.OnCompletionListener {
-            if(narrationPlayer.isAudioPrepared){
-                if(curPos >= numOfSlides-1){ //is it the last slide?
-                    //at the end of video so special case
-                    pauseStoryAudio()
-                    showStartPracticeSnackBar()
-                } else {
-                    //just play the next slide!
-                    videoSeekBar?.progress = slideStartTimes[curPos+1]
-                    playStoryAudio()
-                }
-            }
-        })
+        createNarrationPlayer()
 
         mSeekBarTimer = Timer()
         mSeekBarTimer.schedule(object : TimerTask() {
@@ -148,7 +209,9 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
                         videoSeekBar?.progress = min((System.currentTimeMillis() - seekbarStartTime).toInt(),videoSeekBar!!.max)
                         setSlideFromSeekbar()
                     }else{
-                        if(curPos >= 0) videoSeekBar?.progress = slideStartTimes[curPos] + narrationPlayer.currentPosition
+                        narrationPlayer?.also {
+                            if (it.isPlaying) videoSeekBar?.progress = (it.currentTimeUs / 1000).toInt()
+                        }
                     }
                 }
             }
@@ -158,14 +221,18 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
     }
 
     private fun setSlideFromSeekbar() {
+        //Until the durations are known, show the first slide.
+        if (slideStartTimes.isEmpty()) {
+            if (curPos < 0) showSlide(0)
+            return
+        }
         val time = videoSeekBar!!.progress
         var i = 0
         for (d in slideStartTimes) {
             if (time < d) {
                 if(i-1 != curPos){
-                    curPos = i-1
-                    setPic(learnImageView!!, curPos)
-                    narrationPlayer.setStorySource(this, Workspace.activeStory.slides[curPos].narrationFile)
+                    showSlide(i-1)
+                    needsSeek = true
                 }
                 break
             }
@@ -173,6 +240,12 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
         }
     }
 
+    private fun showSlide(slideNum: Int) {
+        curPos = slideNum
+        setPic(learnImageView!!, curPos)
+        onSlideSelected(curPos)
+    }
+
 
     private fun setToolbar(){
         val bundle = Bundle()
@@ -204,6 +277,7 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
         pauseStoryAudio()
         videoSeekBar!!.progress = 0
         curPos = 0
+        needsSeek = true
         //This gets the progress bar to show the right time.
         seekbarStartTime = System.currentTimeMillis()
     }
@@ -234,12 +308,13 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
      * @param view button to set listeners for
      */
     fun onClickPlayPauseButton(@Suppress("UNUSED_PARAMETER") view: View) {
-        if (narrationPlayer.isAudioPlaying) {
+        if (narrationPlayer?.isPlaying == true) {
             pauseStoryAudio()
         } else {
             if (videoSeekBar!!.progress >= videoSeekBar!!.max-100) {
                 //reset the video to the beginning because they already finished it (within 100 ms)
                 videoSeekBar!!.progress = 0
+                needsSeek = true
             }
             playStoryAudio()
         }
@@ -249,13 +324,18 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
      * Plays the audio
      */
     internal fun playStoryAudio() {
+        val player = narrationPlayer ?: return
         recordingToolbar.stopToolbarMedia()
         setSlideFromSeekbar()
-        narrationPlayer.pauseAudio()
         markLogStart()
         seekbarStartTime = System.currentTimeMillis()
-        narrationPlayer.setVolume(if (isVolumeOn) 1.0f else 0.0f) //set the volume on or off based on the boolean
-        narrationPlayer.playAudio()
+        player.setVolume(if (isVolumeOn) 1.0f else 0.0f) //set the volume on or off based on the boolean
+        //Start from the beginning of the slide the seek bar is on, or carry on from a pause.
+        if (needsSeek || player.isAtEnd) {
+            player.seekToSlide(Math.max(0, curPos))
+            needsSeek = false
+        }
+        player.play()
         playButton!!.setImageResource(R.drawable.ic_pause_white_48dp)
     }
 
@@ -264,7 +344,7 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
      */
     private fun pauseStoryAudio() {
         makeLogIfNecessary()
-        narrationPlayer.pauseAudio()
+        narrationPlayer?.pause()
         playButton!!.setImageResource(R.drawable.ic_play_arrow_white_48dp)
     }
 
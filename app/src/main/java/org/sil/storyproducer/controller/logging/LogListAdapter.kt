@@ -8,38 +8,82 @@ import android.view.ViewGroup
 import android.widget.BaseAdapter
 import android.widget.TextView
 
+import io.reactivex.Single
+import io.reactivex.android.schedulers.AndroidSchedulers
+import io.reactivex.disposables.Disposable
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.PhaseType
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.model.logging.LogEntry
+import org.sil.storyproducer.model.logging.LogJournal
+import timber.log.Timber
 
 import java.util.ArrayList
 
-internal class LogListAdapter(private val context: Context, slide: Int) : BaseAdapter() {
+/**
+ * Shows the activity log entries for one slide, reading them from the [LogJournal] a page at a
+ * time as the list is scrolled.
+ */
+internal class LogListAdapter(private val context: Context, private val slide: Int) : BaseAdapter() {
 
-    private val allEntries = ArrayList<LogEntry>()
+    private val storyTitle = Workspace.activeStory.title
     private var displayEntries = ArrayList<LogEntry>()
+    //The phases to show, or null for all of them.
+    private var phaseTypes: Set<PhaseType>? = null
+    private var nextOffset: Long = 0
+    private var isLastPage = false
+    private var loading: Disposable? = null
 
     init {
-        for (le in Workspace.activeStory.activityLogs) {
-            if (le.appliesToSlideNum(slide)) {
-                allEntries.add(le)
-            }
-        }
-        displayEntries = allEntries
+        loadNextPage()
     }
 
     fun updateList(learn: Boolean, draft: Boolean, comCheck: Boolean) {
+        val types = mutableSetOf<PhaseType>()
+        if (learn) types.add(PhaseType.LEARN)
+        if (draft) types.add(PhaseType.DRAFT)
+        if (comCheck) types.add(PhaseType.COMMUNITY_CHECK)
+        phaseTypes = types
+
+        //Start again from the beginning of the journal.
+        loading?.dispose()
+        loading = null
         displayEntries = ArrayList()
-        for (le in allEntries) {
-            when(le.phase.phaseType){
-                PhaseType.LEARN -> if(learn) displayEntries.add(le)
-                PhaseType.DRAFT -> if(draft) displayEntries.add(le)
-                PhaseType.COMMUNITY_CHECK -> if(comCheck) displayEntries.add(le)
-                else -> {}
+        nextOffset = 0
+        isLastPage = false
+        notifyDataSetChanged()
+        loadNextPage()
+    }
+
+    /**
+     * Stop reading from the journal.
+     */
+    fun dispose() {
+        loading?.dispose()
+    }
+
+    private fun loadNextPage() {
+        if (isLastPage || loading != null) return
+        val types = phaseTypes
+        val offset = nextOffset
+        loading = Single.fromCallable {
+            LogJournal.readPage(context, storyTitle, offset, PAGE_SIZE) { le ->
+                le.appliesToSlideNum(slide) && (types == null || le.phase.phaseType in types)
             }
         }
-        notifyDataSetChanged()
+                .subscribeOn(LogJournal.scheduler)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({ page ->
+                    loading = null
+                    displayEntries.addAll(page.entries)
+                    nextOffset = page.nextOffset
+                    isLastPage = page.isLast
+                    notifyDataSetChanged()
+                }, { th ->
+                    Timber.e(th)
+                    loading = null
+                    isLastPage = true
+                })
     }
 
     override fun getCount(): Int {
@@ -64,6 +108,9 @@ internal class LogListAdapter(private val context: Context, slide: Int) : BaseAd
         val date = cView!!.findViewById<TextView>(R.id.textView_logging_date)
         val info = cView.findViewById<TextView>(R.id.textView_logging_type)
 
+        //Read ahead before the end of the list is reached.
+        if (position >= displayEntries.size - PREFETCH_DISTANCE) loadNextPage()
+
         val entry = getItem(position)
         date.text = entry.dateTimeString
         info.text = "${entry.phase.getPrettyName()} - ${entry.description}"
@@ -71,4 +118,9 @@ internal class LogListAdapter(private val context: Context, slide: Int) : BaseAd
 
         return cView
     }
+
+    companion object {
+        private const val PAGE_SIZE = 50
+        private const val PREFETCH_DISTANCE = 10
+    }
 }
@@ -31,6 +31,14 @@ public class PagerBaseActivity extends PhaseBaseActivity {
         if(slideNum > 0) mViewPager.setCurrentItem(slideNum);
 
         mViewPager.addOnPageChangeListener(new CircularViewPagerHandler(mViewPager));       //sets the change listener to be the circular handler
+        //warm the slides next to the one being shown
+        mViewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                onSlideSelected(position);
+            }
+        });
+        onSlideSelected(mViewPager.getCurrentItem());
     }
 
     @Override
@@ -4,7 +4,6 @@ import android.app.AlertDialog
 import android.content.Intent
 import android.content.res.Configuration
 import android.graphics.Bitmap
-import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.drawable.ColorDrawable
 import android.os.Build
@@ -24,18 +23,22 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.activity.BaseActivity
 import org.sil.storyproducer.model.Phase
 import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StoryPersistence
 import org.sil.storyproducer.model.Workspace
-import org.sil.storyproducer.model.toJson
+import org.sil.storyproducer.service.SlidePrefetcher
 import org.sil.storyproducer.service.SlideService
-import org.sil.storyproducer.tools.BitmapScaler
 import org.sil.storyproducer.tools.DrawerItemClickListener
 import org.sil.storyproducer.tools.PhaseGestureListener
+import org.sil.storyproducer.tools.media.graphics.SlideDrawable
 import org.sil.storyproducer.viewmodel.SlideViewModelBuilder
-import kotlin.math.max
+import java.util.*
 
 abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedListener {
 
     lateinit var slideService: SlideService
+    private lateinit var slidePrefetcher: SlidePrefetcher
+    //The views given to setPic, whose images are released when the activity is destroyed.
+    private val slideImages: MutableSet<ImageView> = Collections.newSetFromMap(WeakHashMap())
 
     private var mDetector: GestureDetectorCompat? = null
     private var mDrawerList: ListView? = null
@@ -50,6 +53,7 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
         super.onCreate(savedInstanceState)
         super.setContentView(R.layout.phase_frame)
         slideService = SlideService(this)
+        slidePrefetcher = SlidePrefetcher(this, slideService)
 
         val mActionBarToolbar = findViewById<Toolbar>(R.id.toolbar)
         setSupportActionBar(mActionBarToolbar)
@@ -70,11 +74,21 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
 
         // Issue #503, it is possible for the user to change workspaces causing a rouge story
         // to save. Instead, ensure that the story exists in the current workspace before saving.
-        if(Workspace.Stories.contains(story)) {
-            Thread(Runnable { story.toJson(this) }).start()
+        if(Workspace.isLoaded(story)) {
+            StoryPersistence.save(this, story)
         }
     }
 
+    override fun onDestroy() {
+        slidePrefetcher.cancel()
+        for (slideImage in slideImages) {
+            (slideImage.drawable as? SlideDrawable)?.also { slideService.releaseImage(it.bitmap) }
+            slideImage.setImageDrawable(null)
+        }
+        slideImages.clear()
+        super.onDestroy()
+    }
+
     //Override setContentView to coerce into child view.
     override fun setContentView(id: Int) {
         val inflater = layoutInflater
@@ -265,6 +279,23 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
         }
     }
 
+    /**
+     * The slide images are shown as wide as the screen and 40% of its height.
+     */
+    val slideImageWidth: Int
+        get() = resources.displayMetrics.widthPixels
+
+    val slideImageHeight: Int
+        get() = (resources.displayMetrics.heightPixels * SLIDE_IMAGE_HEIGHT_FRACTION).toInt()
+
+    /**
+     * Call when the user moves to another slide, to get the slides next to it ready.
+     */
+    fun onSlideSelected(slideNum: Int) {
+        slidePrefetcher.onSlideSelected(slideNum, phase.getPhaseDisplaySlideCount(), story, phase,
+                slideImageWidth, slideImageHeight)
+    }
+
     /**
      * This function allows the picture to scale with the phone's screen size.
      *
@@ -272,37 +303,31 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
      * @param slideNum The slide number to grab the picture from the files.
      */
     fun setPic(slideImage: ImageView, slideNum: Int) {
-        val downSample = 2
-        var slidePicture: Bitmap = slideService.getImage(slideNum, downSample, story)
-        //scale down image to not crash phone from memory error from displaying too large an image
-        //Get the height of the phone.
-        val phoneProperties = this.resources.displayMetrics
-        var height = phoneProperties.heightPixels
-        val scalingFactor = 0.4
-        height = (height * scalingFactor).toInt()
-        val width = phoneProperties.widthPixels
-
-        //scale bitmap
-        slidePicture = BitmapScaler.centerCrop(slidePicture, height, width)
-
-        //draw the text overlay
-        slidePicture = slidePicture.copy(Bitmap.Config.RGB_565, true)
-        val canvas = Canvas(slidePicture)
+        val width = slideImageWidth
+        val height = slideImageHeight
+
+        //Decoded once, at about the size it is shown; the crop is done when drawing.
+        val sharedImage: Bitmap = slideService.getSlideImage(slideNum, width, height, story)
+
         //only show the untranslated title in the Learn phase.
         val slideViewModel = SlideViewModelBuilder(Workspace.activeStory.slides[slideNum]).build()
         val tOverlay = slideViewModel.overlayText
         //if overlay is null, it will not write the text.
-        tOverlay?.setPadding(max(20, 20 + (canvas.width - phoneProperties.widthPixels) / 2))
-        tOverlay?.draw(canvas)
+        tOverlay?.setPadding(20)
 
         //Set the height of the image view
         slideImage.requestLayout()
 
-        slideImage.setImageBitmap(slidePicture)
+        val previous = slideImage.drawable as? SlideDrawable
+        slideImage.setImageDrawable(SlideDrawable(sharedImage, tOverlay, width, height))
+        previous?.also { slideService.releaseImage(it.bitmap) }
+        slideImages.add(slideImage)
     }
 
     companion object {
 
+        private const val SLIDE_IMAGE_HEIGHT_FRACTION = 0.4
+
         fun disableViewAndChildren(view: View) {
             view.isEnabled = false
             if (view is ViewGroup) {
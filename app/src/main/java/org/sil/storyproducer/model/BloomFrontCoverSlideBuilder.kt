@@ -13,14 +13,19 @@ class BloomFrontCoverSlideBuilder : SlideBuilder() {
 
     var lang = "*"
 
-    fun build(context: Context, file: DocumentFile, html: Document): Slide? {
+    /**
+     * @param images collects the cover's image to be sized later, or null to size it now.
+     */
+    fun build(context: Context, file: DocumentFile, html: Document,
+              images: MutableList<PageImage>? = null): Slide? {
         this.context = context
         return html.getElementsByAttributeValueContaining(CLASS, OUTSIDE_FRONT_COVER).firstOrNull()?.let {
-            buildSlide(file, html, it)
+            buildSlide(file, html, it, images)
         }
     }
 
-    private fun buildSlide(file: DocumentFile, html: Document, outsideFrontCover: Element): Slide {
+    private fun buildSlide(file: DocumentFile, html: Document, outsideFrontCover: Element,
+                           images: MutableList<PageImage>?): Slide {
         val slideSubtitle = buildSubtitle(outsideFrontCover).orEmpty()
         val slideContent = buildContent(html)
         lang = getContentLanguage(html)
@@ -32,7 +37,7 @@ class BloomFrontCoverSlideBuilder : SlideBuilder() {
             content = buildTitleIdeas(frontCoverContent)
             narrationFile = buildNarrationFile(file, html, lang).orEmpty()
             reference = frontCoverContent.scriptureReference
-            parsePage(context, frontCoverContent.graphic.startsWith("front"), outsideFrontCover, this, file)
+            parsePage(context, frontCoverContent.graphic.startsWith("front"), outsideFrontCover, this, file, images)
         }
     }
 
@@ -6,11 +6,15 @@ import org.jsoup.nodes.Element
 
 class NumberedPageSlideBuilder : SlideBuilder() {
 
-    fun build(context: Context, file: DocumentFile, page: Element, lang: String): Slide? {
+    /**
+     * @param images collects the page's image to be sized later, or null to size it now.
+     */
+    fun build(context: Context, file: DocumentFile, page: Element, lang: String,
+              images: MutableList<PageImage>? = null): Slide? {
         val slide = Slide()
         slide.slideType = SlideType.NUMBEREDPAGE
 
-        if (!parsePage(context, false, page, slide, file)) {
+        if (!parsePage(context, false, page, slide, file, images)) {
             return null
         }
 
@@ -33,7 +37,7 @@ class NumberedPageSlideBuilder : SlideBuilder() {
                 ?.wholeText()
                 ?.trim()
                 .orEmpty()
-                .replace("\\s*\\n\\s*".toRegex(), "\n")
+                .replace(reLineBreak, "\n")
     }
 
     companion object {
@@ -1,15 +1,22 @@
 package org.sil.storyproducer.model
 
 import android.content.Context
-import android.graphics.BitmapFactory
 import android.graphics.Rect
 import androidx.documentfile.provider.DocumentFile
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.schedulers.Schedulers
 import org.jsoup.Jsoup
+import org.jsoup.nodes.Document
 import org.jsoup.nodes.Element
+import org.jsoup.nodes.Node
+import org.jsoup.select.NodeFilter
+import org.jsoup.select.NodeTraversor
 import org.sil.storyproducer.BuildConfig
 import org.sil.storyproducer.R
+import org.sil.storyproducer.tools.file.ImageSize
+import org.sil.storyproducer.tools.file.ImageSizeCache
 import org.sil.storyproducer.tools.file.getChildDocuments
-import org.sil.storyproducer.tools.file.getStoryFileDescriptor
 import org.sil.storyproducer.tools.file.getText
 import java.util.*
 
@@ -32,25 +39,26 @@ fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
     story.importAppVersion = BuildConfig.VERSION_NAME
 
     val soup = Jsoup.parse(htmlText)
+    //The sizes of the images are read once every page is parsed, all at once.
+    val images: MutableList<PageImage> = ArrayList()
 
     //add the title slide
     val frontCoverSlideBuilder = BloomFrontCoverSlideBuilder()
-    frontCoverSlideBuilder.build(context, storyPath, soup)?.also {
+    frontCoverSlideBuilder.build(context, storyPath, soup, images)?.also {
         slides.add(it)
     } ?: return null
 
     val lang = frontCoverSlideBuilder.lang
 
     var slide = Slide()
-    val pages = soup.getElementsByAttributeValueContaining("class","numberedPage")
-    if(pages.size <= 2) return null
-    for (page in pages) {
-        if (page.attr("class").contains("numberedPage")) {
-            NumberedPageSlideBuilder().build(context, storyPath, page, lang)?.also {
-                slides.add(it)
-            }
+    val parts = BloomParts.of(soup)
+    if(parts.pages.size <= 2) return null
+    for (page in parts.pages) {
+        NumberedPageSlideBuilder().build(context, storyPath, page, lang, images)?.also {
+            slides.add(it)
         }
     }
+    probeImageSizes(context, storyPath, images)
 
     //Add the song slide
     slide = Slide()
@@ -61,18 +69,13 @@ fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
 
     //Before the first page is the bloomDataDiv stuff.  Get the originalAcknowledgments.
     //If they are there, append to the end of the slides.
-    val mOrgAckns = soup.getElementsByAttributeValueMatching("class","(?=.*bloom-translationGroup)(?=.*originalAcknowledgments)")
-    if(mOrgAckns.size >= 1){
-        val mOrgAckn = mOrgAckns[0]
+    val mOrgAckn = parts.originalAcknowledgments
+    if(mOrgAckn != null){
         slide = Slide()
         slide.slideType = SlideType.COPYRIGHT
         val mOAParts = mOrgAckn.getElementsByAttributeValueContaining("class","bloom-editable")
-        slide.content = ""
-        for(p in mOAParts){
-            slide.content += p.wholeText()
-        }
         //cleanup whitespace
-        slide.content = slide.content.trim().replace("\\s*\\n\\s*".toRegex(),"\n")
+        slide.content = mOAParts.joinToString("") { it.wholeText() }.trim().replace(reLineBreak,"\n")
         slide.translatedContent = slide.content
         slide.musicFile = MUSIC_NONE
         slides.add(slide)
@@ -83,12 +86,64 @@ fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
 
 //Image and transition pattern
 val reRect = "([0-9.]+) ([0-9.]+) ([0-9.]+) ([0-9.]+)".toRegex()
+//Whitespace around line breaks, which is cleaned up to a single line break.
+val reLineBreak = "\\s*\\n\\s*".toRegex()
+private val reOriginalAcknowledgments = "(?=.*bloom-translationGroup)(?=.*originalAcknowledgments)".toRegex()
+
+private const val MAX_CONCURRENT_IMAGE_PROBES = 4
+
+/**
+ * The parts of a Bloom book that become slides, found in one walk of the document.
+ * The walk does not go into a page or the acknowledgments once they are found.
+ */
+internal class BloomParts private constructor() {
+    val pages: MutableList<Element> = ArrayList()
+    var originalAcknowledgments: Element? = null
+        private set
+
+    companion object {
+        fun of(soup: Document): BloomParts {
+            val parts = BloomParts()
+            NodeTraversor.filter(object : NodeFilter {
+                override fun head(node: Node, depth: Int): NodeFilter.FilterResult {
+                    if (node !is Element) return NodeFilter.FilterResult.CONTINUE
+                    val classes = node.className()
+                    if (classes.contains("numberedPage")) {
+                        parts.pages.add(node)
+                        return NodeFilter.FilterResult.SKIP_CHILDREN
+                    }
+                    if (parts.originalAcknowledgments == null && reOriginalAcknowledgments.containsMatchIn(classes)) {
+                        parts.originalAcknowledgments = node
+                        return NodeFilter.FilterResult.SKIP_CHILDREN
+                    }
+                    return NodeFilter.FilterResult.CONTINUE
+                }
+
+                override fun tail(node: Node, depth: Int) = NodeFilter.FilterResult.CONTINUE
+            }, soup)
+            return parts
+        }
+    }
+}
 
-fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Element, slide: Slide, storyPath: DocumentFile): Boolean {
-    val bmOptions = BitmapFactory.Options()
-    bmOptions.inJustDecodeBounds = true
-
-    val audios = page.getElementsByAttributeValueContaining("class", "audio-sentence")
+/**
+ * The image of a page, whose size is read after the pages are parsed.
+ * The rectangles are the page's motion, as fractions of the image.
+ */
+class PageImage(val slide: Slide, val initialRect: String, val finalRect: String)
+
+fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Element, slide: Slide, storyPath: DocumentFile,
+              images: MutableList<PageImage>? = null): Boolean {
+    //Find the narration, soundtrack and image in one walk of the page.
+    val audios: MutableList<Element> = ArrayList()
+    var soundtrack: Element? = null
+    var image: Element? = null
+    for (element in page.allElements) {
+        val classes = element.className()
+        if (classes.contains("audio-sentence", true)) audios.add(element)
+        if (soundtrack == null && element.hasAttr("data-backgroundaudio")) soundtrack = element
+        if (image == null && classes.contains("bloom-imageContainer", true)) image = element
+    }
 
     //narration
     if (slide.narrationFile.isEmpty()) {
@@ -100,24 +155,17 @@ fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Elemen
     }
 
     if (!slide.isFrontCover() && !slide.isNumberedPage()) {
-        slide.content = ""
-        for (a in audios) {
-            slide.content += a.wholeText()
-        }
-        slide.content = slide.content.trim().replace("\\s*\\n\\s*".toRegex(), "\n")
+        slide.content = audios.joinToString("") { it.wholeText() }.trim().replace(reLineBreak, "\n")
     }
 
     //soundtrack
-    val soundtrack = page.getElementsByAttribute("data-backgroundaudio")
-    if(soundtrack.size >= 1){
-        slide.musicFile = "audio/${soundtrack[0].attr("data-backgroundaudio")}"
-        slide.volume = (soundtrack[0].attr("data-backgroundaudiovolume") ?: "0.25").toFloat()
+    if(soundtrack != null){
+        slide.musicFile = "audio/${soundtrack.attr("data-backgroundaudio")}"
+        slide.volume = (soundtrack.attr("data-backgroundaudiovolume") ?: "0.25").toFloat()
     }
 
     //image
-    val images = page.getElementsByAttributeValueContaining("class","bloom-imageContainer")
-    if(images.size >= 1){
-        val image = images[0]
+    if(image != null){
         if (!slide.isFrontCover() || frontCoverGraphicProvided) {
             slide.imageFile = image.attr("src")
             if (slide.imageFile == "") {
@@ -131,35 +179,52 @@ fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Elemen
                 if (src.size >= 1) slide.imageFile = src[0].attr("src")
             }
         }
-        BitmapFactory.decodeFileDescriptor(getStoryFileDescriptor(context,slide.imageFile,"image/*","r",storyPath.name!!), null, bmOptions)
-        slide.height = bmOptions.outHeight
-        slide.width = bmOptions.outWidth
-        slide.startMotion = Rect(0, 0, slide.width, slide.height)
-        slide.endMotion = Rect(0, 0, slide.width, slide.height)
-
-        val mSR = reRect.find(image.attr("data-initialrect"))
-        if(mSR != null) {
-            val x = mSR.groupValues[1].toDouble()*slide.width
-            val y = mSR.groupValues[2].toDouble()*slide.height
-            val w = mSR.groupValues[3].toDouble()*slide.width
-            val h = mSR.groupValues[4].toDouble()*slide.height
-            slide.startMotion = Rect((x).toInt(), //left
-                    (y).toInt(),  //top
-                    (x+w).toInt(),   //right
-                    (y+h).toInt())  //bottom
-        }
-        val mER = reRect.find(image.attr("data-finalrect"))
-        if(mER != null) {
-            val x = mER.groupValues[1].toDouble()*slide.width
-            val y = mER.groupValues[2].toDouble()*slide.height
-            val w = mER.groupValues[3].toDouble()*slide.width
-            val h = mER.groupValues[4].toDouble()*slide.height
-            slide.endMotion = Rect((x).toInt(), //left
-                    (y).toInt(),  //top
-                    (x+w).toInt(),   //right
-                    (y+h).toInt())  //bottom
+        val pageImage = PageImage(slide, image.attr("data-initialrect"), image.attr("data-finalrect"))
+        if (images != null) {
+            images.add(pageImage)
+        } else {
+            setImageSize(pageImage, readImageSize(context, slide.imageFile, storyPath))
         }
     }
     return true
 }
 
+/**
+ * Read the sizes of the pages' images, several files at a time, and set the size and motion of
+ * each slide.  Returns once all of them are read.  Images which were read before, such as when
+ * a template is imported again, are not opened.
+ */
+fun probeImageSizes(context: Context, storyPath: DocumentFile, images: List<PageImage>) {
+    Observable.fromIterable(images)
+            .flatMapCompletable({ image ->
+                Completable.fromAction {
+                    setImageSize(image, readImageSize(context, image.slide.imageFile, storyPath))
+                }.subscribeOn(Schedulers.io())
+            }, false, MAX_CONCURRENT_IMAGE_PROBES)
+            .blockingAwait()
+}
+
+private fun readImageSize(context: Context, relPath: String, storyPath: DocumentFile): ImageSize? {
+    if (relPath.isEmpty()) return null
+    return ImageSizeCache.get(context, "${storyPath.name}/$relPath")
+}
+
+private fun setImageSize(image: PageImage, size: ImageSize?) {
+    val slide = image.slide
+    slide.width = size?.width ?: 0
+    slide.height = size?.height ?: 0
+    slide.startMotion = motionRect(image.initialRect, slide.width, slide.height)
+    slide.endMotion = motionRect(image.finalRect, slide.width, slide.height)
+}
+
+private fun motionRect(rect: String, width: Int, height: Int): Rect {
+    val mR = reRect.find(rect) ?: return Rect(0, 0, width, height)
+    val x = mR.groupValues[1].toDouble()*width
+    val y = mR.groupValues[2].toDouble()*height
+    val w = mR.groupValues[3].toDouble()*width
+    val h = mR.groupValues[4].toDouble()*height
+    return Rect((x).toInt(), //left
+            (y).toInt(),  //top
+            (x+w).toInt(),   //right
+            (y+h).toInt())  //bottom
+}
@@ -9,6 +9,7 @@ import java.util.*
 internal const val PROJECT_DIR = "project"
 internal const val VIDEO_DIR = "videos"
 internal const val PROJECT_FILE = "story.json"
+internal const val PROJECT_TEMP_FILE = "story.new.json"
 internal val RE_TITLE_NUMBER = "([0-9]+[A-Za-z]?)?[_ -]*(.+)".toRegex()
 internal val RE_DISPLAY_NAME = "([^|]+)[|.]".toRegex()
 internal val RE_FILENAME = "([^|]+[|])?(.*)".toRegex()
@@ -19,6 +20,7 @@ class Story(var title: String, var slides: List<Slide>){
     var isApproved: Boolean = false
     var learnAudioFile = ""
     var wholeStoryBackTAudioFile = ""
+    //Only read from stories saved by earlier versions; the log is now kept by LogJournal.
     var activityLogs: MutableList<LogEntry> = ArrayList()
     var outputVideos: MutableList<String> = ArrayList()
     var lastPhaseType: PhaseType = PhaseType.LEARN
@@ -0,0 +1,38 @@
+package org.sil.storyproducer.model
+
+/**
+ * How a scan of the workspace changed the story list, compared with the scan before it.
+ *
+ * @param added headers of stories which were not in the list.
+ * @param changed new headers of stories which were read again.
+ * @param removed titles of stories which are no longer in the workspace.
+ */
+class StoryChangeSet(val added: List<StoryHeader>,
+                     val changed: List<StoryHeader>,
+                     val removed: List<String>) {
+
+    fun isEmpty(): Boolean {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty()
+    }
+
+    override fun toString(): String {
+        return "${added.size} added, ${changed.size} changed, ${removed.size} removed"
+    }
+
+    companion object {
+        /**
+         * Compare a scan with the one before it.
+         * @param known the headers from the scan before, by title.
+         * @param built the headers of the stories which were read again in this scan.
+         * @param found the titles of every story this scan has a header for, read again or not.
+         * @param isComplete whether every story was scanned.  If not, no story is taken to be gone.
+         */
+        fun between(known: Map<String, StoryHeader>, built: List<StoryHeader>, found: Set<String>,
+                    isComplete: Boolean): StoryChangeSet {
+            return StoryChangeSet(
+                    built.filter { it.title !in known },
+                    built.filter { it.title in known },
+                    if (isComplete) known.keys.filter { it !in found } else listOf())
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.sil.storyproducer.model
+
+import com.squareup.moshi.JsonClass
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+
+/**
+ * What the story list shows about a story, without the slides and logs of the whole [Story].
+ * The headers are kept in the [StoryManifest] between launches.
+ */
+@JsonClass(generateAdapter = true)
+class StoryHeader(var title: String) {
+
+    var subtitle = ""
+    //The image shown in the story list, relative to the story folder.  Empty for the default image.
+    var thumbnailFile = ""
+    var slideCount = 0
+    var lastPhaseType: PhaseType = PhaseType.LEARN
+
+    //The project file the header was made from.
+    var projectFileSize: Long = -1
+    var projectFileLastModified: Long = -1
+    //The story folder's last modified time when the header was last checked against it.
+    var directoryLastModified: Long = -1
+
+    /**
+     * @return whether the header was made from this version of the story's project file.
+     */
+    fun isCurrent(projectFile: WorkspaceDocument?): Boolean {
+        return projectFile != null && projectFileSize >= 0
+                && projectFile.size == projectFileSize
+                && projectFile.lastModified == projectFileLastModified
+    }
+
+    /**
+     * @return whether nothing was added to, removed from or renamed in the story folder since the
+     * header was checked against it.  A file in a subfolder, such as the project file, can change
+     * without changing the story folder; check it with [isCurrent].
+     */
+    fun isCurrentDirectory(directory: WorkspaceDocument): Boolean {
+        //Some providers do not report a time for folders.
+        return directoryLastModified > 0 && directory.lastModified == directoryLastModified
+    }
+
+    /**
+     * @return a copy of the header, checked against the story folder as it is now.
+     */
+    fun withDirectory(directory: WorkspaceDocument): StoryHeader {
+        val header = StoryHeader(title)
+        header.subtitle = subtitle
+        header.thumbnailFile = thumbnailFile
+        header.slideCount = slideCount
+        header.lastPhaseType = lastPhaseType
+        header.projectFileSize = projectFileSize
+        header.projectFileLastModified = projectFileLastModified
+        header.directoryLastModified = directory.lastModified
+        return header
+    }
+
+    companion object {
+        fun fromStory(story: Story, projectFile: WorkspaceDocument?): StoryHeader {
+            return StoryHeader(story.title).apply {
+                subtitle = story.slides.getOrNull(0)?.subtitle ?: ""
+                //Use the "second" image, because the first is just for the title screen.
+                thumbnailFile = story.slides.getOrNull(1)?.imageFile ?: ""
+                slideCount = story.slides.size
+                lastPhaseType = story.lastPhaseType
+                projectFileSize = projectFile?.size ?: -1
+                projectFileLastModified = projectFile?.lastModified ?: -1
+            }
+        }
+    }
+}
@@ -1,59 +1,103 @@
 package org.sil.storyproducer.model
 
 import android.content.Context
-import androidx.documentfile.provider.DocumentFile
+import android.os.ParcelFileDescriptor
 import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.squareup.moshi.JsonAdapter
 import com.squareup.moshi.Moshi
-import net.lingala.zip4j.ZipFile
+import okio.Okio
 import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.file.*
-import java.io.ByteArrayOutputStream
-import java.io.File
+import java.io.OutputStream
+import java.io.SyncFailedException
 
-fun Story.toJson(context: Context){
+//Generated adapters keep no state, so one adapter is shared by every read and write.
+private val storyAdapter: JsonAdapter<Story> by lazy {
     val moshi = Moshi
             .Builder()
             .add(RectAdapter())
             .add(UriAdapter())
             .build()
-    val adapter = Story.jsonAdapter(moshi)
-    val oStream = getStoryChildOutputStream(context,
-            "$PROJECT_DIR/$PROJECT_FILE","",this.title)
-    if(oStream != null) {
+    Story.jsonAdapter(moshi)
+}
+
+/**
+ * Write the story to its project file.
+ *
+ * The story is written to a temporary file first, which then replaces the project file, so that
+ * an interrupted save never leaves a partial project file.  Use [StoryPersistence] to save from
+ * the UI.
+ */
+fun Story.toJson(context: Context){
+    val tempRelPath = "$PROJECT_DIR/$PROJECT_TEMP_FILE"
+    val pfd = getStoryPFD(context, tempRelPath, "application/json", "wt", title) ?: return
+    try {
+        ParcelFileDescriptor.AutoCloseOutputStream(pfd).use { oStream ->
+            writeJson(oStream)
+            try {
+                pfd.fileDescriptor.sync()
+            } catch (e: SyncFailedException) {
+                //Not a regular file; there is nothing more to do.
+            }
+        }
+    } catch (e: Exception) {
+        FirebaseCrashlytics.getInstance().recordException(e)
+        deleteStoryFile(context, tempRelPath, title)
+        return
+    }
+
+    val projectRelPath = "$PROJECT_DIR/$PROJECT_FILE"
+    val replaced = (!storyRelPathExists(context, projectRelPath, title)
+            || deleteStoryFile(context, projectRelPath, title))
+            && renameWorkspaceFile(context, "$title/$tempRelPath", PROJECT_FILE)
+    if (!replaced) {
+        //The provider can not rename documents; write the project file in place instead.
         try {
-            oStream.write(adapter.toJson(this).toByteArray(Charsets.UTF_8))
-        }catch(e:java.lang.Exception){}
-        finally{oStream.close()}
+            getStoryPFD(context, projectRelPath, "application/json", "wt", title)
+                    ?.let { ParcelFileDescriptor.AutoCloseOutputStream(it) }
+                    ?.use { writeJson(it) }
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+        deleteStoryFile(context, tempRelPath, title)
     }
 }
 
+private fun Story.writeJson(oStream: OutputStream) {
+    //Stream the JSON out instead of building the whole story as one string.
+    val sink = Okio.buffer(Okio.sink(oStream))
+    storyAdapter.toJson(sink, this)
+    sink.flush()
+}
+
 fun storyFromJson(context: Context, storyTitle: String): Story?{
+    //A save which was interrupted after the old project file was removed leaves only the new one.
+    return readStory(context, "$PROJECT_DIR/$PROJECT_FILE", storyTitle)
+            ?: readStory(context, "$PROJECT_DIR/$PROJECT_TEMP_FILE", storyTitle)
+}
+
+private fun readStory(context: Context, relPath: String, storyTitle: String): Story? {
     try {
-        val moshi = Moshi
-                .Builder()
-                .add(RectAdapter())
-                .add(UriAdapter())
-                .build()
-        val adapter = Story.jsonAdapter(moshi)
-        val fileContents = getStoryText(context, "$PROJECT_DIR/$PROJECT_FILE", storyTitle)
-                ?: return null
-        return adapter.fromJson(fileContents)
+        val iStream = getStoryChildInputStream(context, relPath, storyTitle) ?: return null
+        return Okio.buffer(Okio.source(iStream)).use { storyAdapter.fromJson(it) }
     } catch (e: Exception) {
         return null
     }
 }
 
-fun parseStoryIfPresent(context: Context, storyPath: androidx.documentfile.provider.DocumentFile): Story? {
+fun parseStoryIfPresent(context: Context, storyDir: WorkspaceDocument): Story? {
     var story: Story?
     //Check if path is path
-    if(!storyPath.isDirectory) return null
+    if(!storyDir.isDirectory) return null
     //make a project directory if there is none.
-    if (storyRelPathExists(context,PROJECT_DIR,storyPath.name!!)) {
+    if (WorkspaceIndex.exists(context, "${storyDir.name}/$PROJECT_DIR")) {
         //parse the project file, if there is one.
-        story = storyFromJson(context, storyPath.name!!)
+        story = storyFromJson(context, storyDir.name)
         //if there is a story from the file, do not try to read any templates, just return.
         if(story != null) return story
     }
+    //The template parsers need a DocumentFile; only make one when there is no project file.
+    val storyPath = WorkspaceIndex.documentFile(context, storyDir) ?: return null
     try {
         story = parsePhotoStoryXML(context, storyPath)
     } catch (e : Exception){
@@ -103,63 +147,21 @@ fun isZipped(fileName: String?): Boolean {
     } == true
 }
 
-fun unzipIfZipped(context: Context, file: DocumentFile, existingFolders: Array<androidx.documentfile.provider.DocumentFile?>): String? {
+fun unzipIfZipped(context: Context, file: WorkspaceDocument): String? {
     //only unzip zipped files.
     if (!isZipped(file.name)) {
         return file.name
     }
 
-    val name = file.name!!.substringBeforeLast(".","")
-    val sourceFile = File("${context.filesDir}/${file.name!!}")
-    val zipFile = ZipFile(sourceFile.absolutePath)
-
-    try
-    {
-        //copy file to internal files directory to perform the normal "File" opterations on.
-        val uri = getWorkspaceUri(file.name!!)
-        if(uri != null){copyToFilesDir(context,uri,sourceFile)}
-
-        //Exctract to files/unzip
-        val fileHeaders = zipFile.fileHeaders
-
-        val folderNames: MutableList<String> = mutableListOf()
-        for (f in existingFolders){
-            if(f != null) folderNames.add(f.name ?: continue)
-        }
-
-        val baos = ByteArrayOutputStream()
-        val buffer = ByteArray(4192)
-        var count : Int
-
-        for (f in fileHeaders){
-
-            if (storyRelPathExists(context, f.fileName)) continue
-
-            val ostream = getChildOutputStream(context, "$name/${f.fileName}") ?: continue
-
-            // reading and writing
-            val zis = zipFile.getInputStream(f)
-            count = zis.read(buffer)
-            try {
-                while (count != -1) {
-                    baos.write(buffer, 0, count)
-                    val bytes = baos.toByteArray()
-                    ostream.write(bytes)
-                    baos.reset()
-                    count = zis.read(buffer, 0, 4192)
-                }
-            } catch (e: Exception) {
-            }
-            ostream.close()
-            zis.close()
-        }
-
-        //delete copied zip file
+    val name = file.name.substringBeforeLast(".","")
+    if (!WorkspaceUnzipper.unzip(context, file.name, name)) {
+        //Keep the archive, so that the next scan extracts the files which are missing.
+        FirebaseCrashlytics.getInstance().log("Failed to extract all of ${file.name}")
+        return null
     }
-    catch(e: Exception) { }
-    //delete copied and original zip file to save space
-    sourceFile.delete()
-    deleteWorkspaceFile(context,file.name!!)
+
+    //delete original zip file to save space
+    deleteWorkspaceFile(context,file.name)
 
     return name
-}
\ No newline at end of file
+}
@@ -0,0 +1,107 @@
+package org.sil.storyproducer.model
+
+import android.content.Context
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.squareup.moshi.JsonClass
+import com.squareup.moshi.Moshi
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+import org.sil.storyproducer.tools.file.WorkspaceIndex
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+@JsonClass(generateAdapter = true)
+class StoryManifestContents(val workspace: String, val stories: List<StoryHeader>)
+
+/**
+ * The [StoryHeader]s of every story in the workspace, kept in app storage between launches.
+ *
+ * Reading the manifest is one small local file, so the story list can be shown right away.
+ * The workspace is then scanned in the background.  A story whose folder has the same modification
+ * time as when its header was made is not looked at again, and of the others, only those whose
+ * project file has a different size or modification time than its header are parsed again.
+ */
+object StoryManifest {
+
+    private const val MANIFEST_FILE = "story_manifest.json"
+
+    //The headers of the workspace the manifest was last loaded or saved for, by title.
+    private val headers = ConcurrentHashMap<String, StoryHeader>()
+    private var workspace = ""
+
+    private val adapter by lazy {
+        Moshi.Builder().build().adapter(StoryManifestContents::class.java)
+    }
+
+    /**
+     * Read the manifest.
+     * @return the headers of the current workspace, or an empty list if the manifest is missing
+     * or was made for another workspace.
+     */
+    @Synchronized
+    fun load(context: Context): List<StoryHeader> {
+        headers.clear()
+        workspace = currentWorkspace()
+        try {
+            val file = File(context.filesDir, MANIFEST_FILE)
+            if (file.exists()) {
+                val contents = adapter.fromJson(file.readText())
+                if (contents != null && contents.workspace == workspace) {
+                    contents.stories.forEach { headers[it.title] = it }
+                }
+            }
+        } catch (e: Exception) {
+            //The manifest is only a cache; the scan rebuilds it.
+            FirebaseCrashlytics.getInstance().recordException(e)
+            headers.clear()
+        }
+        return headers.values.toList()
+    }
+
+    /**
+     * Replace the manifest with the headers from a scan of the workspace.
+     */
+    @Synchronized
+    fun replace(context: Context, stories: List<StoryHeader>) {
+        headers.clear()
+        workspace = currentWorkspace()
+        stories.forEach { headers[it.title] = it }
+        save(context)
+    }
+
+    /**
+     * Update the header of a story after its project file was written, both here and in
+     * [Workspace.storyHeaders].
+     */
+    @Synchronized
+    fun onStorySaved(context: Context, story: Story) {
+        if (story.title == "" || workspace != currentWorkspace()) return
+        WorkspaceIndex.onChildrenChanged("${story.title}/$PROJECT_DIR")
+        val header = StoryHeader.fromStory(story, projectFile(context, story.title))
+        //Writing the project file does not change the story folder.
+        header.directoryLastModified = headers[story.title]?.directoryLastModified ?: -1
+        headers[story.title] = header
+        save(context)
+        Workspace.onStoryHeaderSaved(header)
+    }
+
+    fun projectFile(context: Context, storyTitle: String): WorkspaceDocument? {
+        return WorkspaceIndex.find(context, "$storyTitle/$PROJECT_DIR/$PROJECT_FILE")
+    }
+
+    private fun currentWorkspace(): String {
+        return Workspace.workdocfile.uri.toString()
+    }
+
+    private fun save(context: Context) {
+        //Write to a temporary file first, so that an interrupted write never leaves half a manifest.
+        val file = File(context.filesDir, MANIFEST_FILE)
+        val tempFile = File(context.filesDir, "$MANIFEST_FILE.tmp")
+        try {
+            tempFile.writeText(adapter.toJson(StoryManifestContents(workspace, headers.values.sortedBy { it.title })))
+            if (!tempFile.renameTo(file)) tempFile.delete()
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            tempFile.delete()
+        }
+    }
+}
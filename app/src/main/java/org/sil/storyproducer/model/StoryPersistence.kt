@@ -0,0 +1,91 @@
+package org.sil.storyproducer.model
+
+import android.content.Context
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * Saves stories to their project files on a single background thread.
+ *
+ * Saves are delayed by [SAVE_DELAY_MS], and a story which is saved again in that time is only
+ * written once, so quickly switching phases or slides does not start a write each time.  As there
+ * is only one writer, two saves of the same story never overlap.  Pending saves are written right
+ * away when the app goes to the background.
+ */
+object StoryPersistence {
+
+    private const val SAVE_DELAY_MS: Long = 1000
+
+    private class PendingSave(val story: Story, val workspace: String)
+
+    //The latest save for each story, by title.  Guarded by this object.
+    private val pending: MutableMap<String, PendingSave> = linkedMapOf()
+    private var scheduled: ScheduledFuture<*>? = null
+    @Volatile
+    private var appContext: Context? = null
+
+    private val executor = Executors.newSingleThreadScheduledExecutor(ThreadFactory { runnable ->
+        Thread(runnable, "StoryPersistence").apply { isDaemon = true }
+    })
+
+    /**
+     * Save the story soon.  Later saves of the same story before it is written are merged into one.
+     */
+    @Synchronized
+    fun save(context: Context, story: Story) {
+        if (story.title == "") return
+        appContext = context.applicationContext
+        pending[story.title] = PendingSave(story, Workspace.workdocfile.uri.toString())
+        scheduled?.cancel(false)
+        scheduled = executor.schedule({ writePending() }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Write all pending saves now.
+     * @return a future which is done when they are written.
+     */
+    @Synchronized
+    fun flush(): Future<*> {
+        scheduled?.cancel(false)
+        scheduled = null
+        return executor.submit { writePending() }
+    }
+
+    /**
+     * Write all pending saves now, and wait up to [timeoutMs] for them to be written.
+     */
+    fun flushAndWait(timeoutMs: Long) {
+        try {
+            flush().get(timeoutMs, TimeUnit.MILLISECONDS)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+    }
+
+    @Synchronized
+    private fun takePending(): List<PendingSave> {
+        val saves = pending.values.toList()
+        pending.clear()
+        return saves
+    }
+
+    private fun writePending() {
+        val saves = takePending()
+        val context = appContext ?: return
+        for (save in saves) {
+            //Issue #503, the user may have changed workspaces since the save was asked for.
+            //Never write a story into a workspace it did not come from.
+            if (save.workspace != Workspace.workdocfile.uri.toString()) continue
+            try {
+                save.story.toJson(context)
+                StoryManifest.onStorySaved(context, save.story)
+            } catch (e: Exception) {
+                FirebaseCrashlytics.getInstance().recordException(e)
+            }
+        }
+    }
+}
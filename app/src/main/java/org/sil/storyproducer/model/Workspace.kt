@@ -9,9 +9,14 @@ import android.provider.Settings.Secure
 import android.util.Log
 import androidx.documentfile.provider.DocumentFile
 import com.google.firebase.analytics.FirebaseAnalytics
+import io.reactivex.android.schedulers.AndroidSchedulers
 import org.sil.storyproducer.R
+import org.sil.storyproducer.model.logging.LogJournal
+import org.sil.storyproducer.tools.file.DocumentUriCache
+import org.sil.storyproducer.tools.file.FileCopier
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+import org.sil.storyproducer.tools.file.WorkspaceIndex
 import org.sil.storyproducer.tools.file.deleteWorkspaceFile
-import org.sil.storyproducer.tools.file.getChildOutputStream
 import org.sil.storyproducer.tools.file.workspaceRelPathExists
 import java.io.File
 import java.io.IOException
@@ -20,14 +25,23 @@ import java.util.*
 
 internal const val SLIDE_NUM = "CurrentSlideNum"
 internal const val DEMO_FOLDER = "000 Unlocked demo story Storm"
+private const val WORKSPACE_SWITCH_SAVE_TIMEOUT_MS: Long = 5000
 
 object Workspace{
     var workdocfile = DocumentFile.fromFile(File(""))
         set(value) {
             field = value
+            DocumentUriCache.invalidate()
+            WorkspaceIndex.invalidate()
             prefs?.edit()?.putString("workspace", field.uri.toString())?.apply()
         }
-    val Stories: MutableList<Story> = mutableListOf()
+    //Every story in the workspace has a header.  A whole story is only read when it is opened.
+    val storyHeaders: MutableList<StoryHeader> = mutableListOf()
+    //The stories which have been opened, by title, least recently used first.
+    private val loadedStories = LinkedHashMap<String, Story>(16, 0.75f, true)
+    private const val MAX_LOADED_STORIES = 3
+    //Called on the main thread when the headers change while the story list may be showing.
+    var onStoryHeadersChanged: ((StoryChangeSet) -> Unit)? = null
     var registration: Registration = Registration()
     var phases: List<Phase> = ArrayList()
     var activePhaseIndex: Int = -1
@@ -86,6 +100,8 @@ object Workspace{
 
     fun setupWorkspacePath(context: Context, uri: Uri) {
         try {
+            // Finish saving the stories of the old workspace before leaving it.
+            StoryPersistence.flushAndWait(WORKSPACE_SWITCH_SAVE_TIMEOUT_MS)
             // Issue 539 - Reset Story info to detach from current Story, if any
             activeStory = emptyStory()
 
@@ -109,58 +125,129 @@ object Workspace{
                 Log.e("workspace", "Failed to get demo assets.", e)
                 return
             }
-            for (filename in files) {
-                try {
-                    val instream = assetManager.open("$DEMO_FOLDER/$filename")
-                    val outstream = getChildOutputStream(context, "$DEMO_FOLDER/$filename")
-                    val buffer = ByteArray(1024)
-                    var read: Int
-                    while (instream.read(buffer).also { read = it } != -1) {
-                        outstream!!.write(buffer, 0, read)
-                    }
-                    outstream?.close()
-                    instream.close()
-                } catch (e: Exception) {
-                    Log.e("workspace", "Failed to copy demo asset file: $filename", e)
-                }
-            }
+            //Copy the first file of each folder on its own, so that the folder is only created once.
+            val folders: MutableSet<String> = mutableSetOf()
+            val (firstInFolder, others) = files.partition { folders.add(it.substringBeforeLast('/', "")) }
+            firstInFolder.forEach { copyDemoFile(context, it) }
+            FileCopier.copyInParallel(others.map { filename -> { copyDemoFile(context, filename) } })
 
-            pathOf(DEMO_FOLDER)?.also { path ->
+            pathOf(context, DEMO_FOLDER)?.also { path ->
                 buildStory(context, path)?.also { story ->
-                    Stories.add(story)
+                    addStoryHeader(StoryHeader.fromStory(story, StoryManifest.projectFile(context, story.title)))
                     sortStoriesByTitle()
+                    StoryManifest.onStorySaved(context, story)
                 }
             }
         }
     }
 
-    fun pathOf(name: String): DocumentFile? {
-        return workdocfile.listFiles().find { it.name == name }
+    private fun copyDemoFile(context: Context, filename: String): Boolean {
+        return FileCopier.copyAssetToWorkspace(context, "$DEMO_FOLDER/$filename", "$DEMO_FOLDER/$filename").also {
+            if (!it) Log.e("workspace", "Failed to copy demo asset file: $filename")
+        }
+    }
+
+    fun pathOf(context: Context, name: String): WorkspaceDocument? {
+        return WorkspaceIndex.find(context, name)
     }
 
     fun clearWorkspace(){
         workdocfile = DocumentFile.fromFile(File(""))
     }
 
-    fun storyFiles(): List<DocumentFile> {
-        return storyDirectories().plus(storyBloomFiles())
+    fun storyFiles(context: Context): List<WorkspaceDocument> {
+        return storyDirectories(context).plus(storyBloomFiles(context))
     }
 
-    private fun storyDirectories(): List<DocumentFile> {
-        return workdocfile.listFiles().filter { it.isDirectory }
+    private fun storyDirectories(context: Context): List<WorkspaceDocument> {
+        return WorkspaceIndex.list(context).filter { it.isDirectory }
     }
 
-    private fun storyBloomFiles(): List<DocumentFile> {
-        return workdocfile.listFiles().filter { isZipped(it.name) }
+    private fun storyBloomFiles(context: Context): List<WorkspaceDocument> {
+        return WorkspaceIndex.list(context).filter { isZipped(it.name) }
     }
 
-    fun buildStory(context: Context, storyPath: DocumentFile): Story? {
-        return unzipIfZipped(context, storyPath, workdocfile.listFiles())
-                ?.let { storyFolder -> pathOf(storyFolder) }
+    fun buildStory(context: Context, storyPath: WorkspaceDocument): Story? {
+        return unzipIfZipped(context, storyPath)
+                ?.let { storyFolder -> pathOf(context, storyFolder) }
                 ?.let { storyPath -> parseStoryIfPresent(context, storyPath) }
                 ?.let { story -> migrateStory(context, story) }
     }
 
+    /**
+     * Add the header of a story which was just read from the workspace, replacing any older one.
+     */
+    fun addStoryHeader(header: StoryHeader) {
+        storyHeaders.removeAll { it.title == header.title }
+        storyHeaders.add(header)
+        loadedStories.remove(header.title)
+    }
+
+    /**
+     * Replace the header of a story whose project file was just written, and tell the story list.
+     * May be called from any thread; the list is changed on the main thread.  The story stays
+     * loaded, since it is the one which was saved.
+     */
+    fun onStoryHeaderSaved(header: StoryHeader) {
+        AndroidSchedulers.mainThread().scheduleDirect {
+            val index = storyHeaders.indexOfFirst { it.title == header.title }
+            //The story was removed, or the workspace changed, while it was being saved.
+            if (index < 0) return@scheduleDirect
+            storyHeaders[index] = header
+            onStoryHeadersChanged?.invoke(StoryChangeSet(listOf(), listOf(header), listOf()))
+        }
+    }
+
+    /**
+     * Bring the headers up to date with a scan of the workspace, leaving the others as they are.
+     * @param checked headers which only record that the scan checked their story, in place of
+     * the old ones.  The story list shows no change for them.
+     */
+    fun applyStoryChanges(changes: StoryChangeSet, checked: List<StoryHeader> = listOf()) {
+        val titles = changes.removed.toSet() + changes.changed.map { it.title } +
+                changes.added.map { it.title } + checked.map { it.title }
+        storyHeaders.removeAll { it.title in titles }
+        storyHeaders.addAll(changes.added)
+        storyHeaders.addAll(changes.changed)
+        storyHeaders.addAll(checked)
+        sortStoriesByTitle()
+    }
+
+    /**
+     * Get the whole story for a header, reading it from the workspace if it is not in memory.
+     */
+    fun loadStory(context: Context, header: StoryHeader): Story? {
+        loadedStories[header.title]?.also { return it }
+        return storyFromJson(context, header.title)
+                ?.let { story -> migrateStory(context, story) }
+                ?.also { story ->
+                    LogJournal.migrate(context, story)
+                    loadedStories[header.title] = story
+                    evictStories(MAX_LOADED_STORIES)
+                }
+    }
+
+    /**
+     * @return whether the story was opened from the current workspace and is still in memory.
+     */
+    fun isLoaded(story: Story): Boolean {
+        return loadedStories.values.any { it === story }
+    }
+
+    /**
+     * Drop the least recently opened stories from memory until at most [maxStories] are left.
+     * The active story is always kept.
+     */
+    fun evictStories(maxStories: Int = 0) {
+        val inactive = loadedStories.filterValues { it !== activeStory }.keys
+        inactive.take((loadedStories.size - maxStories).coerceAtLeast(0)).forEach { loadedStories.remove(it) }
+    }
+
+    fun clearStories() {
+        storyHeaders.clear()
+        loadedStories.clear()
+    }
+
     fun buildPhases(): List<Phase> {
         //update phases based upon registration selection
         return when(registration.getString("consultant_location_type")) {
@@ -226,7 +313,7 @@ object Workspace{
     }
 
     fun sortStoriesByTitle() {
-        Stories.sortBy { it.title }
+        storyHeaders.sortBy { it.title }
     }
 
 }
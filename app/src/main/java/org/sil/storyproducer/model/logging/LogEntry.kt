@@ -48,14 +48,14 @@ fun saveLearnLog(context: Context, startSlide: Int, endSlide: Int, duration: Lon
         }
         ret += " (" + minString + roundedSecs % 60 + " " + secUnit + ")"
     }
-    saveLog(ret,startSlide,endSlide)
+    saveLog(context, ret,startSlide,endSlide)
 }
 
-fun saveLog(description: String,startSlideNum: Int = Workspace.activeSlideNum, endSlideNum: Int = Workspace.activeSlideNum) {
+fun saveLog(context: Context, description: String,startSlideNum: Int = Workspace.activeSlideNum, endSlideNum: Int = Workspace.activeSlideNum) {
     val dateTimeString = SimpleDateFormat("EEE MMM dd yyyy h:mm a", Locale.US).format(GregorianCalendar().time)
     val phase = Workspace.activePhase
 
     val le = LogEntry(dateTimeString,
             description, phase, startSlideNum,endSlideNum)
-    Workspace.activeStory.activityLogs.add(le)
+    LogJournal.append(context, Workspace.activeStory.title, le)
 }
\ No newline at end of file
@@ -0,0 +1,240 @@
+package org.sil.storyproducer.model.logging
+
+import android.content.Context
+import android.os.ParcelFileDescriptor
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.squareup.moshi.Moshi
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import okio.BufferedSource
+import okio.Okio
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StoryPersistence
+import org.sil.storyproducer.tools.file.deleteStoryFile
+import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import org.sil.storyproducer.tools.file.getStoryPFD
+import org.sil.storyproducer.tools.file.renameWorkspaceFile
+import org.sil.storyproducer.tools.file.storyRelPathExists
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+
+/**
+ * One page of a story's activity log.
+ * @param nextOffset where the next page starts in the journal.
+ * @param isLast whether the end of the journal was reached.
+ */
+class LogPage(val entries: List<LogEntry>, val nextOffset: Long, val isLast: Boolean)
+
+/**
+ * The activity log of each story, kept in its own file next to the project file.
+ *
+ * Each entry is one line of JSON which is appended to the journal, so logging never rewrites the
+ * earlier entries and saving story.json costs the same however long the history is.  Every entry
+ * starts with a line break, so an entry which was cut off when the app was stopped mid-write
+ * is left on a line of its own.  Such lines are skipped when reading, and the journal is then
+ * compacted by rewriting it without them.  As a write can only be cut off when the app is stopped,
+ * each journal is also checked for them on the first append of each run, and every
+ * [COMPACT_INTERVAL] appends after that.
+ *
+ * All reads and writes run in order on [scheduler].
+ */
+object LogJournal {
+
+    private const val JOURNAL_FILE = "activity_log.jsonl"
+    private const val JOURNAL_TEMP_FILE = "activity_log.new.jsonl"
+    //A type that no provider adds a file extension for.
+    private const val MIME_TYPE = "application/octet-stream"
+    private const val COMPACT_INTERVAL = 500
+
+    private val adapter by lazy { Moshi.Builder().build().adapter(LogEntry::class.java) }
+
+    private val executor = Executors.newSingleThreadExecutor(ThreadFactory { runnable ->
+        Thread(runnable, "LogJournal").apply { isDaemon = true }
+    })
+    val scheduler: Scheduler = Schedulers.from(executor)
+
+    //Entries appended to each story's journal since it was last checked.  Only used on the executor.
+    private val appendCounts: MutableMap<String, Int> = mutableMapOf()
+
+    internal class Scan(val page: LogPage, val isDamaged: Boolean)
+
+    /**
+     * Add an entry to the end of a story's journal.
+     */
+    fun append(context: Context, storyTitle: String, entry: LogEntry) {
+        if (storyTitle == "") return
+        val appContext = context.applicationContext
+        executor.execute {
+            if (!write(appContext, storyTitle, listOf(entry), "wa")) {
+                FirebaseCrashlytics.getInstance().log("Failed to log activity for $storyTitle")
+                return@execute
+            }
+            val count = appendCounts[storyTitle]
+            if (count == null || count + 1 >= COMPACT_INTERVAL) {
+                appendCounts[storyTitle] = 0
+                compact(appContext, storyTitle)
+            } else {
+                appendCounts[storyTitle] = count + 1
+            }
+        }
+    }
+
+    /**
+     * Move the activity log kept in story.json by earlier versions of the app into the journal.
+     */
+    fun migrate(context: Context, story: Story) {
+        if (story.activityLogs.isEmpty()) return
+        val appContext = context.applicationContext
+        val entries = story.activityLogs.toList()
+        executor.execute {
+            //If the app was stopped before the story was saved, the entries are already at the
+            //start of the journal.
+            if (startsWith(appContext, story.title, entries) || write(appContext, story.title, entries, "wa")) {
+                //Replace rather than clear the list, as it may be being saved right now.
+                story.activityLogs = ArrayList()
+                //Saved in the background; until then, startsWith() keeps the entries from being
+                //written twice.
+                StoryPersistence.save(appContext, story)
+            }
+        }
+    }
+
+    /**
+     * Read the entries of a story's journal which pass [filter], starting at [offset].
+     * Must be called on [scheduler].
+     * @param maxEntries stop after this many entries have passed the filter.
+     */
+    fun readPage(context: Context, storyTitle: String, offset: Long, maxEntries: Int,
+                 filter: (LogEntry) -> Boolean): LogPage {
+        val scan = scan(context, storyTitle, offset, maxEntries, filter)
+        if (scan.isDamaged) executor.execute { compact(context, storyTitle) }
+        return scan.page
+    }
+
+    private fun scan(context: Context, storyTitle: String, offset: Long, maxEntries: Int,
+                     filter: (LogEntry) -> Boolean): Scan {
+        val iStream = getStoryChildInputStream(context, "$PROJECT_DIR/$JOURNAL_FILE", storyTitle)
+                ?: return Scan(LogPage(listOf(), offset, true), false)
+        return read(iStream, offset, maxEntries, filter)
+    }
+
+    /**
+     * Read a page of a journal from a stream which starts at the start of the journal, and close it.
+     */
+    internal fun read(iStream: InputStream, offset: Long, maxEntries: Int, filter: (LogEntry) -> Boolean): Scan {
+        val entries: MutableList<LogEntry> = mutableListOf()
+        var position = offset
+        var isLast = true
+        var damaged = false
+        try {
+            Okio.buffer(Okio.source(seek(iStream, offset))).use { source ->
+                while (!source.exhausted()) {
+                    if (entries.size >= maxEntries) {
+                        isLast = false
+                        break
+                    }
+                    val line = readLine(source)
+                    position += line.second
+                    if (line.first.isBlank()) continue
+                    val entry = parse(line.first)
+                    if (entry == null) {
+                        damaged = true
+                    } else if (filter(entry)) {
+                        entries.add(entry)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+        return Scan(LogPage(entries, position, isLast), damaged)
+    }
+
+    private fun startsWith(context: Context, storyTitle: String, entries: List<LogEntry>): Boolean {
+        val journaled = scan(context, storyTitle, 0, entries.size) { true }.page.entries
+        return journaled.size == entries.size
+                && journaled.indices.all { adapter.toJson(journaled[it]) == adapter.toJson(entries[it]) }
+    }
+
+    /**
+     * Rewrite a story's journal without any damaged lines, if it has any.
+     */
+    private fun compact(context: Context, storyTitle: String) {
+        val scan = scan(context, storyTitle, 0, Int.MAX_VALUE) { true }
+        if (!scan.isDamaged) return
+        val page = scan.page
+        val tempRelPath = "$PROJECT_DIR/$JOURNAL_TEMP_FILE"
+        if (!write(context, storyTitle, page.entries, "wt", tempRelPath)) return
+        val relPath = "$PROJECT_DIR/$JOURNAL_FILE"
+        val replaced = (!storyRelPathExists(context, relPath, storyTitle)
+                || deleteStoryFile(context, relPath, storyTitle))
+                && renameWorkspaceFile(context, "$storyTitle/$tempRelPath", JOURNAL_FILE)
+        if (!replaced) {
+            //The provider can not rename documents; rewrite the journal in place instead.
+            write(context, storyTitle, page.entries, "wt")
+            deleteStoryFile(context, tempRelPath, storyTitle)
+        }
+    }
+
+    private fun write(context: Context, storyTitle: String, entries: List<LogEntry>, mode: String,
+                      relPath: String = "$PROJECT_DIR/$JOURNAL_FILE"): Boolean {
+        val pfd = getStoryPFD(context, relPath, MIME_TYPE, mode, storyTitle) ?: return false
+        return try {
+            Okio.buffer(Okio.sink(ParcelFileDescriptor.AutoCloseOutputStream(pfd))).use { sink ->
+                for (entry in entries) {
+                    sink.writeUtf8("\n")
+                    sink.writeUtf8(adapter.toJson(entry))
+                }
+            }
+            true
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            false
+        }
+    }
+
+    private fun seek(iStream: InputStream, offset: Long): InputStream {
+        if (offset <= 0) return iStream
+        try {
+            if (iStream is FileInputStream) {
+                iStream.channel.position(offset)
+                return iStream
+            }
+        } catch (e: IOException) {
+            //Not a regular file; skip through it instead.
+        }
+        var skipped: Long = 0
+        while (skipped < offset) {
+            val count = iStream.skip(offset - skipped)
+            if (count <= 0) break
+            skipped += count
+        }
+        return iStream
+    }
+
+    /**
+     * @return the next line, without its line break, and how many bytes it took up.
+     */
+    private fun readLine(source: BufferedSource): Pair<String, Long> {
+        val newline = source.indexOf('\n'.toByte())
+        if (newline == -1L) {
+            val length = source.buffer().size()
+            return Pair(source.readUtf8(length), length)
+        }
+        val line = source.readUtf8(newline)
+        source.skip(1)
+        return Pair(line, newline + 1)
+    }
+
+    private fun parse(line: String): LogEntry? {
+        return try {
+            adapter.fromJson(line)
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.sil.storyproducer.service
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import android.util.LruCache
+import java.util.WeakHashMap
+
+/**
+ * A process-wide cache of decoded images, shared by the phases, the story list and the video export.
+ *
+ * The cache is bounded by [maxBytes].  Bitmaps which have been dropped from the cache, and which
+ * every user has [release]d, are kept in a small pool and decoded into again with
+ * [BitmapFactory.Options.inBitmap], so decoding an image of a similar size does not allocate
+ * new memory.  A bitmap which is taken from the cache must not be changed or recycled, and must
+ * only be released once it is no longer drawn.
+ */
+object BitmapCache {
+
+    private const val TAG = "BitmapCache"
+
+    class Stats(val hits: Long, val misses: Long, val bytesDecoded: Long, val reusedBitmaps: Long) {
+        val hitRate: Float
+            get() = if (hits + misses == 0L) 0f else hits.toFloat() / (hits + misses)
+
+        override fun toString(): String {
+            return "hit rate ${(hitRate * 100).toInt()}% ($hits of ${hits + misses}), " +
+                    "${bytesDecoded / 1024} KB decoded, $reusedBitmaps bitmaps reused"
+        }
+    }
+
+    /**
+     * The most memory the cached bitmaps may use.  The reuse pool may hold another quarter of this.
+     */
+    var maxBytes: Int = (Runtime.getRuntime().maxMemory() / 8).toInt()
+        set(value) {
+            field = value
+            cache.resize(value)
+            trimPool()
+        }
+
+    private val cache = object : LruCache<String, Bitmap>(maxBytes) {
+        override fun sizeOf(key: String, value: Bitmap): Int = value.allocationByteCount
+
+        override fun entryRemoved(evicted: Boolean, key: String, oldValue: Bitmap, newValue: Bitmap?) {
+            onRemoved(oldValue)
+        }
+    }
+
+    //How many users hold each bitmap.  Weak, so that bitmaps which are never released are not kept.
+    private val users = WeakHashMap<Bitmap, Int>()
+    private val pool: MutableList<Bitmap> = mutableListOf()
+
+    private var hits: Long = 0
+    private var misses: Long = 0
+    private var bytesDecoded: Long = 0
+    private var reusedBitmaps: Long = 0
+
+    /**
+     * Get a cached bitmap, or decode and cache it.  The caller must [release] it when done.
+     * @param decode decodes the bitmap, given options that may hold a bitmap to decode into.
+     */
+    fun get(key: String, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        synchronized(this) {
+            cache.get(key)?.also {
+                hits++
+                acquire(it)
+                return it
+            }
+            misses++
+        }
+
+        val options = BitmapFactory.Options()
+        options.inMutable = true
+        val bitmap = decode(options) ?: return null
+        synchronized(this) {
+            bytesDecoded += bitmap.byteCount
+            acquire(bitmap)
+            cache.put(key, bitmap)
+        }
+        return bitmap
+    }
+
+    /**
+     * Get a bitmap only if it is cached, without decoding.  The caller must [release] it when done.
+     */
+    @Synchronized
+    fun getIfCached(key: String): Bitmap? {
+        return cache.get(key)?.also {
+            hits++
+            acquire(it)
+        }
+    }
+
+    /**
+     * Whether a bitmap is cached, without counting it as a hit or making it more recently used.
+     */
+    @Synchronized
+    fun contains(key: String): Boolean {
+        return cache.snapshot().containsKey(key)
+    }
+
+    /**
+     * Give the decoder a bitmap from the pool which is big enough for an image of these bounds.
+     * Call after decoding only the bounds, with [BitmapFactory.Options.inSampleSize] set.
+     */
+    @Synchronized
+    fun setReusableBitmap(options: BitmapFactory.Options) {
+        val sampleSize = Math.max(1, options.inSampleSize)
+        //Decoders may round up, so allow an extra row and column.
+        val neededBytes = (options.outWidth / sampleSize + 1) * (options.outHeight / sampleSize + 1) * 4
+        val reusable = pool.filter { it.isMutable && !it.isRecycled && it.allocationByteCount >= neededBytes }
+                .minBy { it.allocationByteCount } ?: return
+        pool.remove(reusable)
+        options.inBitmap = reusable
+        reusedBitmaps++
+    }
+
+    /**
+     * Decode with a bitmap from the pool if there is one, and without it if it does not fit.
+     */
+    fun decodeReusing(options: BitmapFactory.Options, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        setReusableBitmap(options)
+        return try {
+            decode(options)
+        } catch (e: IllegalArgumentException) {
+            options.inBitmap = null
+            decode(options)
+        }
+    }
+
+    /**
+     * Stop using a bitmap from [get].
+     */
+    @Synchronized
+    fun release(bitmap: Bitmap) {
+        val count = (users[bitmap] ?: return) - 1
+        if (count > 0) {
+            users[bitmap] = count
+            return
+        }
+        users.remove(bitmap)
+        if (!cache.snapshot().containsValue(bitmap)) addToPool(bitmap)
+    }
+
+    @Synchronized
+    fun clear() {
+        cache.evictAll()
+        pool.clear()
+    }
+
+    @Synchronized
+    fun stats(): Stats {
+        return Stats(hits, misses, bytesDecoded, reusedBitmaps)
+    }
+
+    fun logStats() {
+        Log.i(TAG, stats().toString())
+    }
+
+    private fun acquire(bitmap: Bitmap) {
+        users[bitmap] = (users[bitmap] ?: 0) + 1
+    }
+
+    private fun onRemoved(bitmap: Bitmap) {
+        synchronized(this) {
+            //Still drawn somewhere; it is dropped when that user is done with it.
+            if ((users[bitmap] ?: 0) == 0) addToPool(bitmap)
+        }
+    }
+
+    private fun addToPool(bitmap: Bitmap) {
+        if (!bitmap.isMutable || bitmap.isRecycled) return
+        pool.add(bitmap)
+        trimPool()
+    }
+
+    private fun trimPool() {
+        var total = pool.map { it.allocationByteCount.toLong() }.sum()
+        while (total > maxBytes / 4 && pool.isNotEmpty()) {
+            total -= pool.removeAt(0).allocationByteCount
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import io.reactivex.schedulers.Schedulers
+import org.sil.storyproducer.model.Phase
+import org.sil.storyproducer.model.PhaseType
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.storyRelPathExists
+import org.sil.storyproducer.tools.media.AudioPlayerPool
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Warms the slides next to the one being shown, so that paging to them does not wait on the workspace.
+ *
+ * Each time a slide is selected, the images of the slides within [PREFETCH_DISTANCE] of it are
+ * decoded into the shared [BitmapCache] at the size [SlideService.getSlideImage] is asked for, and
+ * players for the reference audio of the next and previous slides are prepared in the [AudioPlayerPool].
+ * Work for a slide which is no longer selected is cancelled, nearest slides are done first, and
+ * each selection decodes at most [prefetchBudget] bytes of new images.
+ */
+class SlidePrefetcher(context: Context, private val slideService: SlideService) {
+
+    private class Neighbour(val slideNum: Int, val audioRelPath: String)
+
+    private val appContext = context.applicationContext
+    private var work: Disposable = Disposables.disposed()
+
+    /**
+     * Start warming the neighbours of [slideNum], cancelling the work for the previous slide.
+     * @param slideCount how many slides the phase shows.
+     * @param imageWidth the width the slide images are shown at, in pixels.
+     * @param imageHeight the height the slide images are shown at, in pixels.
+     */
+    fun onSlideSelected(slideNum: Int, slideCount: Int, story: Story, phase: Phase,
+                        imageWidth: Int, imageHeight: Int) {
+        work.dispose()
+        //Read the story here, on the main thread, rather than while it may be being changed.
+        val neighbours = (1..PREFETCH_DISTANCE)
+                .flatMap { listOf(slideNum + it, slideNum - it) }
+                .filter { it in 0 until Math.min(slideCount, story.slides.size) }
+                .map { Neighbour(it, referenceAudioFile(phase, it)) }
+        if (neighbours.isEmpty()) return
+
+        var budget = prefetchBudget()
+        work = Observable.fromIterable(neighbours)
+                .concatMapCompletable { neighbour ->
+                    Completable.fromAction {
+                        budget -= prefetchImage(neighbour.slideNum, story, imageWidth, imageHeight, budget)
+                        if (Math.abs(neighbour.slideNum - slideNum) <= AUDIO_PREFETCH_DISTANCE) {
+                            prefetchAudio(neighbour.audioRelPath, story.title)
+                        }
+                    }
+                }
+                .subscribeOn(scheduler)
+                .subscribe({}, { th ->
+                    FirebaseCrashlytics.getInstance().recordException(th)
+                })
+    }
+
+    fun cancel() {
+        work.dispose()
+    }
+
+    /**
+     * @return how many bytes were decoded.
+     */
+    private fun prefetchImage(slideNum: Int, story: Story, width: Int, height: Int, budget: Int): Int {
+        if (budget <= 0) return 0
+        return slideService.prefetchSlideImage(slideNum, width, height, story)
+    }
+
+    private fun prefetchAudio(relPath: String, storyTitle: String) {
+        if (!storyRelPathExists(appContext, relPath, storyTitle)) return
+        val uri = getStoryUri(relPath, storyTitle) ?: return
+        AudioPlayerPool.prepare(appContext, uri)
+    }
+
+    private fun referenceAudioFile(phase: Phase, slideNum: Int): String {
+        //Learn plays its narration with a StoryNarrationPlayer, which does not use the pool.
+        if (phase.phaseType == PhaseType.LEARN) return ""
+        return try {
+            phase.getReferenceAudioFile(slideNum)
+        } catch (e: Exception) {
+            ""
+        }
+    }
+
+    companion object {
+        private const val PREFETCH_DISTANCE = 2
+        //Only the next and previous slides, so the pool keeps the players the user chose to play.
+        private const val AUDIO_PREFETCH_DISTANCE = 1
+
+        //One low priority thread shared by every phase, so prefetching never competes with the slide being shown.
+        private val scheduler = Schedulers.from(Executors.newSingleThreadExecutor(ThreadFactory { runnable ->
+            Thread(runnable, "SlidePrefetcher").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+            }
+        }))
+
+        /**
+         * A quarter of the shared cache, so the neighbours never push out more than that.
+         */
+        fun prefetchBudget(): Int = BitmapCache.maxBytes / 4
+    }
+}
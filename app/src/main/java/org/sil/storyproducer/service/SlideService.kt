@@ -6,7 +6,11 @@ import android.graphics.BitmapFactory
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.PhaseType
 import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.tools.file.ImageSize
+import org.sil.storyproducer.tools.file.ImageSizeCache
+import org.sil.storyproducer.tools.file.WorkspaceMirror
 import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import java.io.FileInputStream
 
 class SlideService(val context: Context) {
 
@@ -24,18 +28,87 @@ class SlideService(val context: Context) {
     }
 
     fun getImage(relPath: String, sampleSize: Int = 1, useAllPixels: Boolean = false, story: Story): Bitmap {
-        val iStream = getStoryChildInputStream(context, relPath, story.title)
-        if (iStream === null || iStream.available() == 0) {
-            return genDefaultImage()
-        }
+        return getImage(relPath, sampleSize, useAllPixels, story.title)
+    }
+
+    /**
+     * Get an image from the shared [BitmapCache], decoding it if it is not there.
+     * The image must not be changed, and should be given to [releaseImage] once it is not drawn.
+     */
+    fun getImage(relPath: String, sampleSize: Int, useAllPixels: Boolean, storyTitle: String): Bitmap {
+        val key = "$storyTitle/$relPath@$sampleSize" + if (useAllPixels) ":all" else ""
+        return BitmapCache.get(key) { options ->
+            decodeImage(relPath, storyTitle, useAllPixels, options) { sampleSize }
+        } ?: genDefaultImage()
+    }
+
+    /**
+     * Get a slide's image for showing in a view of the given size, decoded in one pass at the
+     * smallest power of two sample size that still covers the view, as opaque RGB_565.
+     * The image is not cropped; draw it with [org.sil.storyproducer.tools.media.graphics.SlideDrawable].
+     * Like [getImage], it is shared and should be given to [releaseImage] once it is not drawn.
+     */
+    fun getSlideImage(slideNum: Int, width: Int, height: Int, story: Story): Bitmap {
+        if (shouldShowDefaultImage(slideNum, story)) return genDefaultImage()
+        val relPath = story.slides[slideNum].imageFile
+        return BitmapCache.get(slideImageKey(relPath, width, height, story)) { options ->
+            options.inPreferredConfig = Bitmap.Config.RGB_565
+            decodeImage(relPath, story.title, false, options) { coveringSampleSize(it, width, height) }
+        } ?: genDefaultImage()
+    }
+
+    /**
+     * Decode a slide's image into the cache, as [getSlideImage] would, without keeping it.
+     * @return how many bytes were decoded, or 0 if it was already cached.
+     */
+    fun prefetchSlideImage(slideNum: Int, width: Int, height: Int, story: Story): Int {
+        if (shouldShowDefaultImage(slideNum, story)) return 0
+        val key = slideImageKey(story.slides[slideNum].imageFile, width, height, story)
+        if (BitmapCache.contains(key)) return 0
+        val bitmap = getSlideImage(slideNum, width, height, story)
+        releaseImage(bitmap)
+        return bitmap.allocationByteCount
+    }
+
+    private fun slideImageKey(relPath: String, width: Int, height: Int, story: Story): String {
+        return "${story.title}/$relPath@${width}x$height:565"
+    }
+
+    fun releaseImage(bitmap: Bitmap) {
+        BitmapCache.release(bitmap)
+    }
 
-        val options = BitmapFactory.Options()
-        options.inSampleSize = sampleSize
+    /**
+     * @param sampleSize picks the sample size, given options holding the image's bounds if they
+     * could be read.
+     */
+    private fun decodeImage(relPath: String, storyTitle: String, useAllPixels: Boolean,
+                            options: BitmapFactory.Options,
+                            sampleSize: (BitmapFactory.Options) -> Int): Bitmap? {
         if (useAllPixels) {
             options.inTargetDensity = 1
         }
 
-        val bmp = BitmapFactory.decodeStream(iStream, null, options)!!
+        //The size is usually known from an earlier run, so the file is only read once, to decode it.
+        val size = ImageSizeCache.get(context, "$storyTitle/$relPath")
+        val mirrorFile = WorkspaceMirror.getStoryFile(context, relPath, storyTitle)
+        val bmp = if (mirrorFile != null) {
+            if (mirrorFile.length() == 0L) return null
+            decodeReusing(options, size, sampleSize) { BitmapFactory.decodeFile(mirrorFile.path, it) }
+        } else {
+            val iStream = getStoryChildInputStream(context, relPath, storyTitle) ?: return null
+            iStream.use {
+                if (it.available() == 0) return null
+                if (it is FileInputStream) {
+                    //Decoding does not move the descriptor, so it can be read for the bounds first.
+                    decodeReusing(options, size, sampleSize) { opts -> BitmapFactory.decodeFileDescriptor(it.fd, null, opts) }
+                } else {
+                    setBounds(options, size)
+                    options.inSampleSize = sampleSize(options)
+                    BitmapFactory.decodeStream(it, null, options)
+                }
+            }
+        } ?: return null
         if (useAllPixels) {
             bmp.density = Bitmap.DENSITY_NONE
         }
@@ -43,8 +116,56 @@ class SlideService(val context: Context) {
         return bmp
     }
 
+    /**
+     * Decode the bounds, if the size is not known, then decode the image into a pooled bitmap if
+     * one is big enough.
+     */
+    private fun decodeReusing(options: BitmapFactory.Options, size: ImageSize?,
+                              sampleSize: (BitmapFactory.Options) -> Int,
+                              decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        if (size != null) {
+            setBounds(options, size)
+        } else {
+            options.inJustDecodeBounds = true
+            decode(options)
+            options.inJustDecodeBounds = false
+        }
+        options.inSampleSize = sampleSize(options)
+        return BitmapCache.decodeReusing(options, decode)
+    }
+
+    /**
+     * Fill in the bounds as a bounds-only decode would.
+     */
+    private fun setBounds(options: BitmapFactory.Options, size: ImageSize?) {
+        if (size == null) return
+        options.outWidth = size.width
+        options.outHeight = size.height
+    }
+
+    /**
+     * The largest power of two that keeps the decoded image at least as big as the view on both
+     * sides, so that a center crop never has to scale it up.
+     */
+    private fun coveringSampleSize(options: BitmapFactory.Options, width: Int, height: Int): Int {
+        if (options.outWidth <= 0 || options.outHeight <= 0) return DEFAULT_SAMPLE_SIZE
+        var sampleSize = 1
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2
+        }
+        return sampleSize
+    }
+
     fun genDefaultImage(): Bitmap {
-        return BitmapFactory.decodeResource(context.resources, R.drawable.greybackground)
+        return BitmapCache.get(DEFAULT_IMAGE_KEY) { options ->
+            BitmapFactory.decodeResource(context.resources, R.drawable.greybackground, options)
+        } ?: BitmapFactory.decodeResource(context.resources, R.drawable.greybackground)
+    }
+
+    companion object {
+        private const val DEFAULT_IMAGE_KEY = "default"
+        //Used when the bounds can not be read before decoding.
+        private const val DEFAULT_SAMPLE_SIZE = 2
     }
 
 }
\ No newline at end of file
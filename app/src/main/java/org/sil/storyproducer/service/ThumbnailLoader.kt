@@ -0,0 +1,159 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.net.Uri
+import android.widget.ImageView
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import io.reactivex.Maybe
+import io.reactivex.android.schedulers.AndroidSchedulers
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import io.reactivex.schedulers.Schedulers
+import org.sil.storyproducer.R
+import org.sil.storyproducer.model.StoryHeader
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+import org.sil.storyproducer.tools.file.WorkspaceIndex
+import org.sil.storyproducer.tools.file.getStoryUri
+import java.io.File
+import java.io.FileOutputStream
+import java.security.MessageDigest
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Loads the images shown in the story list without blocking the main thread.
+ *
+ * Each image is decoded once at the size of the row's image view and kept in the shared
+ * [BitmapCache].  Rows hold on to their images, so they are never released for reuse.  The
+ * small decoded image is also saved in the app's cache directory, under a name made from the
+ * image's URI, size and modification time, so a changed image is decoded again and an
+ * unchanged one is never read from the workspace again.
+ */
+object ThumbnailLoader {
+
+    private const val THUMBNAIL_DIR = "thumbnails"
+    private const val MAX_DISK_BYTES: Long = 10 * 1024 * 1024
+    private const val JPEG_QUALITY = 85
+    private const val DECODE_THREADS = 2
+
+    //Only a couple of decodes at a time, so that rows which are scrolled past can be cancelled
+    //before they start.
+    private val scheduler = Schedulers.from(Executors.newFixedThreadPool(DECODE_THREADS, ThreadFactory { runnable ->
+        Thread(runnable, "ThumbnailLoader").apply { isDaemon = true }
+    }))
+
+    /**
+     * Show the story's image in the view, decoding it in the background if needed.
+     * @param size the width and height of the view, in pixels.
+     * @return a disposable to cancel the load when the view is used for another story.
+     */
+    fun load(context: Context, imageView: ImageView, header: StoryHeader, size: Int): Disposable {
+        if (header.title == "" || header.thumbnailFile == "") {
+            imageView.setImageResource(R.drawable.greybackground)
+            return Disposables.disposed()
+        }
+        val appContext = context.applicationContext
+        val cacheKey = "thumbnail:${header.title}/${header.thumbnailFile}@$size"
+        BitmapCache.getIfCached(cacheKey)?.also {
+            imageView.setImageBitmap(it)
+            return Disposables.disposed()
+        }
+
+        imageView.setImageResource(R.drawable.greybackground)
+        return Maybe.fromCallable<Bitmap> { BitmapCache.get(cacheKey) { getThumbnail(appContext, header, size) } }
+                .subscribeOn(scheduler)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({ bitmap ->
+                    imageView.setImageBitmap(bitmap)
+                }, { th ->
+                    FirebaseCrashlytics.getInstance().recordException(th)
+                })
+    }
+
+    /**
+     * @return the thumbnail from disk, or decoded from the workspace, or null to keep the default.
+     */
+    private fun getThumbnail(context: Context, header: StoryHeader, size: Int): Bitmap? {
+        val document = WorkspaceIndex.find(context, "${header.title}/${header.thumbnailFile}")
+                ?: return null
+        val uri = getStoryUri(header.thumbnailFile, header.title) ?: return null
+        val file = File(thumbnailDir(context), "${hash(uri.toString())}_${document.lastModified}_${document.size}_$size.jpg")
+        if (file.exists()) {
+            BitmapFactory.decodeFile(file.path)?.also { return it }
+        }
+
+        val bitmap = decode(context, document, uri, size) ?: return null
+        save(context, file, bitmap)
+        return bitmap
+    }
+
+    private fun decode(context: Context, document: WorkspaceDocument, uri: Uri, size: Int): Bitmap? {
+        if (document.size == 0L) return null
+        val pfd = context.contentResolver.openFileDescriptor(uri, "r") ?: return null
+        return pfd.use {
+            //The descriptor's position is not changed by decoding, so it can be read twice.
+            val options = BitmapFactory.Options()
+            options.inJustDecodeBounds = true
+            BitmapFactory.decodeFileDescriptor(it.fileDescriptor, null, options)
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null
+
+            //Decode at the smallest power of two which is still at least as big as the view.
+            var sampleSize = 1
+            while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+                sampleSize *= 2
+            }
+            options.inJustDecodeBounds = false
+            options.inSampleSize = sampleSize
+            val sampled = BitmapFactory.decodeFileDescriptor(it.fileDescriptor, null, options)
+                    ?: return null
+
+            //Then scale to fit the view exactly.
+            val scale = size.toFloat() / Math.max(sampled.width, sampled.height)
+            if (scale >= 1f) return sampled
+            val scaled = Bitmap.createScaledBitmap(sampled,
+                    Math.max(1, Math.round(sampled.width * scale)),
+                    Math.max(1, Math.round(sampled.height * scale)), true)
+            if (scaled !== sampled) sampled.recycle()
+            scaled
+        }
+    }
+
+    private fun save(context: Context, file: File, bitmap: Bitmap) {
+        val dir = file.parentFile ?: return
+        try {
+            if (!dir.isDirectory && !dir.mkdirs()) return
+            //Remove the thumbnails made from older versions of the same image.
+            val prefix = file.name.substringBefore('_') + "_"
+            dir.listFiles { old -> old.name.startsWith(prefix) }?.forEach { it.delete() }
+
+            val tempFile = File(dir, "${file.name}.tmp")
+            FileOutputStream(tempFile).use { bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, it) }
+            if (!tempFile.renameTo(file)) tempFile.delete()
+            trim(dir)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+    }
+
+    @Synchronized
+    private fun trim(dir: File) {
+        val files = dir.listFiles()?.sortedBy { it.lastModified() } ?: return
+        var total = files.map { it.length() }.sum()
+        for (file in files) {
+            if (total <= MAX_DISK_BYTES) break
+            total -= file.length()
+            file.delete()
+        }
+    }
+
+    private fun thumbnailDir(context: Context): File {
+        return File(context.cacheDir, THUMBNAIL_DIR)
+    }
+
+    private fun hash(text: String): String {
+        return MessageDigest.getInstance("SHA-1").digest(text.toByteArray(Charsets.UTF_8))
+                .joinToString("") { String.format("%02x", it) }
+    }
+}
@@ -0,0 +1,81 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.net.Uri
+import android.provider.DocumentsContract
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A thread-safe cache of the MIME types of workspace documents, including whether they exist.
+ *
+ * Each [android.content.ContentResolver.getType] call is a binder IPC into the documents provider,
+ * so resolving a path one segment at a time is slow. The cache is filled on first use and when
+ * documents are created, and updated when they are deleted. It is cleared when the workspace
+ * changes or is rescanned, so that changes made outside of the app are picked up.
+ */
+object DocumentUriCache {
+
+    //Marks a document which is known not to exist.
+    private const val MISSING = ""
+
+    private val mimeTypes = ConcurrentHashMap<String, String>()
+
+    /**
+     * Get the MIME type of a document, asking the documents provider only on the first request.
+     * @return the MIME type, or null if the document does not exist.
+     */
+    fun getType(context: Context, uri: Uri): String? {
+        val key = uri.toString()
+        val cached = mimeTypes[key]
+        if (cached != null) {
+            return if (cached == MISSING) null else cached
+        }
+
+        val type = try {
+            context.contentResolver.getType(uri)
+        } catch (e: Exception) {
+            null
+        }
+        mimeTypes[key] = type ?: MISSING
+        return type
+    }
+
+    fun exists(context: Context, uri: Uri): Boolean {
+        return getType(context, uri) != null
+    }
+
+    fun isDirectory(context: Context, uri: Uri): Boolean {
+        return getType(context, uri)?.contains(DocumentsContract.Document.MIME_TYPE_DIR) ?: false
+    }
+
+    /**
+     * Record a document which was just created.
+     */
+    fun onCreated(uri: Uri, mimeType: String) {
+        mimeTypes[uri.toString()] = mimeType
+    }
+
+    /**
+     * Record a document which was just deleted, along with everything under it.
+     */
+    fun onDeleted(uri: Uri) {
+        val key = uri.toString()
+        val childPrefix = key + Uri.encode("/")
+        mimeTypes.keys.removeAll { it.startsWith(childPrefix) }
+        mimeTypes[key] = MISSING
+    }
+
+    /**
+     * Forget what is known about a single document, so that the provider is asked again.
+     */
+    fun forget(uri: Uri) {
+        mimeTypes.remove(uri.toString())
+    }
+
+    /**
+     * Forget everything. Call this when the workspace changes.
+     */
+    fun invalidate() {
+        mimeTypes.clear()
+    }
+}
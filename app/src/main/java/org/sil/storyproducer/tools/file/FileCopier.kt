@@ -0,0 +1,244 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Copies files between the workspace, app storage and the app's assets.
+ *
+ * When both ends are backed by a file descriptor (which is the case for local files and for
+ * most [ParcelFileDescriptor]s from the documents provider), the kernel copies the data with
+ * [java.nio.channels.FileChannel.transferTo]. Otherwise a large pooled buffer is used.
+ * Streams are always closed, and several independent files can be copied at once with
+ * [copyInParallel].
+ */
+object FileCopier {
+
+    /**
+     * Receives the progress of a single copy.
+     */
+    interface ProgressListener {
+        /**
+         * @param copiedBytes bytes copied so far.
+         * @param totalBytes bytes to copy, or -1 if unknown.
+         */
+        fun onCopyProgress(copiedBytes: Long, totalBytes: Long)
+    }
+
+    private const val BUFFER_SIZE = 256 * 1024
+    //Let the kernel copy in chunks this size, so that progress can be reported.
+    private const val TRANSFER_CHUNK_SIZE: Long = 4 * 1024 * 1024
+    private const val MAX_PARALLEL_COPIES = 3
+
+    private val bufferPool = ConcurrentLinkedQueue<ByteArray>()
+
+    private val executor = Executors.newFixedThreadPool(MAX_PARALLEL_COPIES, ThreadFactory { runnable ->
+        Thread(runnable, "FileCopier").apply { isDaemon = true }
+    })
+
+    /**
+     * Copy a document or file into the workspace.
+     * @return whether the whole file was copied.
+     */
+    fun copyToWorkspace(context: Context, sourceUri: Uri, destRelPath: String,
+                        listener: ProgressListener? = null): Boolean {
+        return try {
+            val source = context.contentResolver.openFileDescriptor(sourceUri, "r") ?: return false
+            val length = source.statSize
+            val input = ParcelFileDescriptor.AutoCloseInputStream(source)
+            val output = getPFD(context, destRelPath, "", "w")
+            if (output == null) {
+                input.close()
+                return false
+            }
+            isWhole(copy(input, ParcelFileDescriptor.AutoCloseOutputStream(output), length, listener), length)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            false
+        }
+    }
+
+    /**
+     * Copy a document or file to a file in app storage.
+     * @return whether the whole file was copied.
+     */
+    fun copyToFile(context: Context, sourceUri: Uri, destFile: File,
+                   listener: ProgressListener? = null): Boolean {
+        return try {
+            val source = context.contentResolver.openFileDescriptor(sourceUri, "r") ?: return false
+            val length = source.statSize
+            val input = ParcelFileDescriptor.AutoCloseInputStream(source)
+            isWhole(copy(input, FileOutputStream(destFile), length, listener), length)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            false
+        }
+    }
+
+    /**
+     * Copy one of the app's assets into the workspace.
+     * @return whether the whole file was copied.
+     */
+    fun copyAssetToWorkspace(context: Context, assetPath: String, destRelPath: String,
+                             listener: ProgressListener? = null): Boolean {
+        return try {
+            //Only uncompressed assets have a file descriptor of their own.
+            var length: Long = -1
+            val input: InputStream = try {
+                val afd = context.assets.openFd(assetPath)
+                length = afd.declaredLength
+                afd.createInputStream()
+            } catch (e: FileNotFoundException) {
+                context.assets.open(assetPath)
+            }
+            val output = getPFD(context, destRelPath, "", "w")
+            if (output == null) {
+                input.close()
+                return false
+            }
+            isWhole(copy(input, ParcelFileDescriptor.AutoCloseOutputStream(output), length, listener), length)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            false
+        }
+    }
+
+    /**
+     * Copy a stream to another and close both.
+     * @param length bytes to copy, or -1 to copy to the end of [input].
+     * @return the number of bytes copied, which is less than [length] if [input] ended early.
+     */
+    @Throws(IOException::class)
+    fun copy(input: InputStream, output: OutputStream, length: Long = -1,
+             listener: ProgressListener? = null): Long {
+        input.use {
+            output.use {
+                var copied: Long = -1
+                if (input is FileInputStream && output is FileOutputStream) {
+                    copied = transfer(input, output, length, listener)
+                }
+                if (copied < 0) {
+                    copied = copyBuffered(input, output, length, 0, listener)
+                }
+                if (output is FileOutputStream) truncate(output.channel, copied)
+                return copied
+            }
+        }
+    }
+
+    /**
+     * Check the result of [copy]. A short copy is recorded, as the file it left is not usable.
+     * @param length the expected length, or -1 if it is not known.
+     */
+    fun isWhole(copied: Long, length: Long): Boolean {
+        if (length < 0 || copied == length) return true
+        FirebaseCrashlytics.getInstance().recordException(
+                IOException("Copied $copied of $length bytes"))
+        return false
+    }
+
+    /**
+     * Run several independent copies at the same time and wait for all of them.
+     * The copies must not create the same workspace directory, or it may be created twice.
+     * @return whether every copy succeeded.
+     */
+    fun copyInParallel(copies: List<() -> Boolean>): Boolean {
+        val futures = copies.map { copy -> executor.submit<Boolean> { copy() } }
+        var success = true
+        for (future in futures) {
+            try {
+                if (!future.get()) success = false
+            } catch (e: ExecutionException) {
+                FirebaseCrashlytics.getInstance().recordException(e)
+                success = false
+            }
+        }
+        return success
+    }
+
+    /**
+     * Copy with [java.nio.channels.FileChannel.transferTo].
+     * If the kernel stops copying early (as it may for some outputs), the rest is copied
+     * through a buffer.
+     * @return the number of bytes copied, or -1 if the input is not a regular file (e.g. a pipe),
+     * in which case nothing was copied.
+     */
+    private fun transfer(input: FileInputStream, output: FileOutputStream, length: Long,
+                         listener: ProgressListener?): Long {
+        val inChannel = input.channel
+        val outChannel = output.channel
+        val start: Long
+        val total: Long
+        try {
+            start = inChannel.position()
+            total = if (length >= 0) length else inChannel.size() - start
+        } catch (e: IOException) {
+            return -1
+        }
+        if (total <= 0) return -1
+
+        var copied: Long = 0
+        while (copied < total) {
+            val count = inChannel.transferTo(start + copied,
+                    Math.min(TRANSFER_CHUNK_SIZE, total - copied), outChannel)
+            if (count <= 0) break
+            copied += count
+            listener?.onCopyProgress(copied, total)
+        }
+        if (copied < total) {
+            //transferTo does not move the input's position, but the buffered copy reads from it.
+            inChannel.position(start + copied)
+            copied += copyBuffered(input, output, total - copied, copied, listener)
+        }
+        return copied
+    }
+
+    /**
+     * @param copiedBefore bytes of the same copy already copied some other way, for the progress.
+     */
+    private fun copyBuffered(input: InputStream, output: OutputStream, length: Long,
+                             copiedBefore: Long, listener: ProgressListener?): Long {
+        val buffer = bufferPool.poll() ?: ByteArray(BUFFER_SIZE)
+        try {
+            var copied: Long = 0
+            while (length < 0 || copied < length) {
+                val toRead = if (length < 0) buffer.size else Math.min(buffer.size.toLong(), length - copied).toInt()
+                val read = input.read(buffer, 0, toRead)
+                if (read < 0) break
+                output.write(buffer, 0, read)
+                copied += read
+                listener?.onCopyProgress(copiedBefore + copied,
+                        if (length < 0) length else copiedBefore + length)
+            }
+            return copied
+        } finally {
+            bufferPool.offer(buffer)
+        }
+    }
+
+    /**
+     * Writing to an existing document with mode "w" does not always truncate it, so remove
+     * anything left over from the old contents.
+     */
+    private fun truncate(channel: FileChannel, size: Long) {
+        try {
+            if (channel.size() > size) channel.truncate(size)
+        } catch (e: IOException) {
+            //Not a regular file; nothing can be left over.
+        }
+    }
+}
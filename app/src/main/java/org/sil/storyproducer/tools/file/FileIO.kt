@@ -2,9 +2,7 @@
 package org.sil.storyproducer.tools.file
 
 import android.content.Context
-import android.database.Cursor
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.net.Uri
 import android.os.ParcelFileDescriptor
 import android.provider.DocumentsContract
@@ -20,57 +18,21 @@ import kotlin.math.max
 import kotlin.math.min
 
 
-fun copyToWorkspacePath(context: Context, sourceUri: Uri, destRelPath: String){
-//    var iStream: AutoCloseInputStream = null
-    try {
-        //TODO Why is DocumentsContract.isDocument not working right?
-        val ipfd = context.contentResolver.openFileDescriptor(
-                sourceUri, "r")
-        val iStream = ParcelFileDescriptor.AutoCloseInputStream(ipfd)
-        val opfd = getPFD(context, destRelPath,"","w")
-        val oStream = ParcelFileDescriptor.AutoCloseOutputStream(opfd)
-        val bArray = ByteArray(100000)
-        var bytesRead = iStream.read(bArray)
-        while(bytesRead > 0){ //eof not reached
-            oStream.write(bArray,0,bytesRead)
-            bytesRead = iStream.read(bArray)
-        }
-        iStream.close()
-        iStream.close()
-    } catch (e: Exception) {
-        FirebaseCrashlytics.getInstance().recordException(e)
-    }
+fun copyToWorkspacePath(context: Context, sourceUri: Uri, destRelPath: String,
+                        listener: FileCopier.ProgressListener? = null) : Boolean {
+    return FileCopier.copyToWorkspace(context, sourceUri, destRelPath, listener)
 }
 
-fun copyToFilesDir(context: Context, sourceUri: Uri, destFile: File){
-    try {
-        //TODO Why is DocumentsContract.isDocument not working right?
-        val ipfd = context.contentResolver.openFileDescriptor(
-                sourceUri, "r")
-        val iStream = ParcelFileDescriptor.AutoCloseInputStream(ipfd)
-        val oStream = destFile.outputStream()
-        val bArray = ByteArray(100000)
-        var bytesRead = iStream.read(bArray)
-        while(bytesRead > 0){ //eof not reached
-            oStream.write(bArray,0,bytesRead)
-            bytesRead = iStream.read(bArray)
-        }
-        iStream.close()
-        iStream.close()
-    } catch (e: Exception) {
-        FirebaseCrashlytics.getInstance().recordException(e)
-    }
+fun copyToFilesDir(context: Context, sourceUri: Uri, destFile: File,
+                   listener: FileCopier.ProgressListener? = null) : Boolean {
+    return FileCopier.copyToFile(context, sourceUri, destFile, listener)
 }
 
 fun getDownsample(context: Context, relPath: String,
                          dstWidth: Int = DEFAULT_WIDTH, dstHeight: Int = DEFAULT_HEIGHT,
                          story: Story = Workspace.activeStory): Int{
-    val iStream = getStoryChildInputStream(context,relPath,story.title) ?: return 1
-    if(iStream.available() == 0) return 1
-    val options = BitmapFactory.Options()
-    options.inJustDecodeBounds = true
-    BitmapFactory.decodeStream(iStream, null, options)
-    return max(1,min(options.outHeight/dstHeight,options.outWidth/dstWidth))
+    val size = ImageSizeCache.get(context, "${story.title}/$relPath") ?: return 1
+    return max(1,min(size.height/dstHeight,size.width/dstWidth))
 }
 
 fun getStoryChildOutputStream(context: Context, relPath: String, mimeType: String = "", dirRoot: String = Workspace.activeDirRoot) : OutputStream? {
@@ -81,16 +43,14 @@ fun getStoryChildOutputStream(context: Context, relPath: String, mimeType: Strin
 fun storyRelPathExists(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) : Boolean{
     if(relPath == "") return false
     val uri = getStoryUri(relPath,dirRoot) ?: return false
-    context.contentResolver.getType(uri) ?: return false
-    return true
+    return DocumentUriCache.exists(context, uri)
 }
 
 fun workspaceRelPathExists(context: Context, relPath: String) : Boolean{
     if(relPath == "") return false
     //if we can get the type, it exists.
     val uri: Uri = getWorkspaceUri(relPath) ?: return false
-    context.contentResolver.getType(uri) ?: return false
-    return true
+    return DocumentUriCache.exists(context, uri)
 }
 
 fun getStoryUri(relPath: String, dirRoot: String = Workspace.activeDirRoot) : Uri? {
@@ -144,46 +104,27 @@ fun getStoryPFD(context: Context, relPath: String, mimeType: String = "", mode:
 }
 
 fun getChildDocuments(context: Context,relPath: String) : MutableList<String>{
-    //build a query to look for the child documents
-    //This is actually the easiest and fastest way to get a list of child documents, believe it or not.
-    var childDocs: MutableList<String> = ArrayList()
-    val cursor: Cursor
-    try {
-        cursor = context.contentResolver.query(
-                DocumentsContract.buildChildDocumentsUriUsingTree(
-                        Workspace.workdocfile.uri,
-                        DocumentsContract.getDocumentId(
-                                Uri.parse(Workspace.workdocfile.uri.toString() +
-                                        Uri.encode("/$relPath"))
-                        ))
-                , arrayOf(DocumentsContract.Document.COLUMN_DISPLAY_NAME),
-                null, null, null)!!
-        //You have a handle to the data structure (as if in SQL).  walk through the elements and add them to the list.
-        cursor.moveToFirst()
-        do {
-            childDocs.add(cursor.getString(0))
-            cursor.moveToNext()
-        } while ((!cursor.isAfterLast))
-        cursor.close()
-    } catch (e: Exception) { childDocs = ArrayList() }
-
-    return childDocs
+    //The index lists a whole directory in one query and remembers it.
+    return WorkspaceIndex.list(context, relPath).map { it.name }.toMutableList()
 }
 
-fun getPFD(context: Context, relPath: String, mimeType: String = "", mode: String = "r") : ParcelFileDescriptor? {
-    if (!Workspace.workdocfile.isDirectory) return null
-    //build the document tree if it is needed
-    val segments = relPath.split("/")
+/**
+ * Create a folder in the workspace, along with any missing parent folders.
+ * @return the URI of the folder, or null if it could not be created.
+ */
+fun createWorkspaceDirectory(context: Context, relPath: String) : Uri? {
+    if (!DocumentUriCache.isDirectory(context, Workspace.workdocfile.uri)) return null
     var uri = Workspace.workdocfile.uri
+    if (relPath == "") return uri
+    val segments = relPath.split("/")
     try {
-        for (i in 0..segments.size - 2) {
-            //TODO make this faster.
+        for (i in segments.indices) {
             val newUri = Uri.parse(uri.toString() + Uri.encode("/${segments[i]}"))
-            val isDirectory = context.contentResolver.getType(newUri)?.contains(DocumentsContract.Document.MIME_TYPE_DIR)
-                    ?: false
-            if (!isDirectory) {
+            if (!DocumentUriCache.isDirectory(context, newUri)) {
                 DocumentsContract.createDocument(context.contentResolver, uri,
                         DocumentsContract.Document.MIME_TYPE_DIR, segments[i])
+                DocumentUriCache.onCreated(newUri, DocumentsContract.Document.MIME_TYPE_DIR)
+                WorkspaceIndex.onChildrenChanged(segments.take(i).joinToString("/"))
             }
             uri = newUri
         }
@@ -191,10 +132,16 @@ fun getPFD(context: Context, relPath: String, mimeType: String = "", mode: Strin
         FirebaseCrashlytics.getInstance().recordException(e)
         return null
     }
+    return uri
+}
+
+fun getPFD(context: Context, relPath: String, mimeType: String = "", mode: String = "r") : ParcelFileDescriptor? {
+    //build the document tree if it is needed
+    val segments = relPath.split("/")
+    val uri = createWorkspaceDirectory(context, segments.dropLast(1).joinToString("/")) ?: return null
     //create the file if it is needed
     val newUri = Uri.parse(uri.toString() + Uri.encode("/${segments.last()}"))
-    //TODO replace with custom exists thing.
-    if(context.contentResolver.getType(newUri) == null){
+    if(!DocumentUriCache.exists(context, newUri)){
         //find the mime type by extension
         var mType = mimeType
         if(mType == "") {
@@ -207,7 +154,30 @@ fun getPFD(context: Context, relPath: String, mimeType: String = "", mode: Strin
                 else -> "*/*"
             }
         }
-        DocumentsContract.createDocument(context.contentResolver,uri,mType,segments.last())
+        val createdUri = try {
+            DocumentsContract.createDocument(context.contentResolver,uri,mType,segments.last())
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            null
+        } ?: return null
+        if (DocumentsContract.getDocumentId(createdUri) != DocumentsContract.getDocumentId(newUri)) {
+            //The provider named it something else, e.g. with an extension for its type or a
+            //" (1)" suffix.  That is not the file which was asked for, so do not leave it behind.
+            FirebaseCrashlytics.getInstance().log("Created ${segments.last()} under another name: $createdUri")
+            try {
+                DocumentsContract.deleteDocument(context.contentResolver, createdUri)
+            } catch (e: Exception) {
+                FirebaseCrashlytics.getInstance().recordException(e)
+            }
+            DocumentUriCache.forget(newUri)
+            return null
+        }
+        DocumentUriCache.onCreated(createdUri, mType)
+    }
+    //Writing changes the size and modification time of the file.
+    if(mode != "r") {
+        WorkspaceIndex.onChildrenChanged(segments.dropLast(1).joinToString("/"))
+        WorkspaceFileListeners.onFileChanged(context, relPath, newUri)
     }
     var pfd: ParcelFileDescriptor? = null
     try{
@@ -234,7 +204,14 @@ fun getChildInputStream(context: Context, relPath: String) : InputStream? {
 fun deleteStoryFile(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) : Boolean {
     if(storyRelPathExists(context, relPath, dirRoot)){
         val uri: Uri = getStoryUri(relPath,dirRoot) ?: return false
-        return DocumentsContract.deleteDocument(context.contentResolver,uri)
+        val deleted = DocumentsContract.deleteDocument(context.contentResolver,uri)
+        if (deleted) {
+            DocumentUriCache.onDeleted(uri)
+            WorkspaceIndex.refresh("$dirRoot/$relPath")
+            WorkspaceFileListeners.onFileChanged(context, "$dirRoot/$relPath", uri)
+            WorkspaceIndex.onChildrenChanged("$dirRoot/$relPath".substringBeforeLast('/', ""))
+        }
+        return deleted
     }
     return false
 }
@@ -242,10 +219,52 @@ fun deleteStoryFile(context: Context, relPath: String, dirRoot: String = Workspa
 fun deleteWorkspaceFile(context: Context, relPath: String) : Boolean {
     if(workspaceRelPathExists(context, relPath)){
         val uri: Uri  = getWorkspaceUri(relPath) ?: return false
-        return DocumentsContract.deleteDocument(context.contentResolver,uri)
+        val deleted = DocumentsContract.deleteDocument(context.contentResolver,uri)
+        if (deleted) {
+            DocumentUriCache.onDeleted(uri)
+            WorkspaceIndex.refresh(relPath)
+            WorkspaceFileListeners.onFileChanged(context, relPath, uri)
+            WorkspaceIndex.onChildrenChanged(relPath.substringBeforeLast('/', ""))
+        }
+        return deleted
     }
     return false
 }
 
+/**
+ * Give a workspace file a new name in the same folder.
+ * @return whether the file now has exactly the new name.
+ */
+fun renameWorkspaceFile(context: Context, relPath: String, newName: String) : Boolean {
+    return renameWorkspaceDocument(context, relPath, newName) == newName
+}
+
+/**
+ * Give a workspace file a new name in the same folder.
+ * @return the name the file now has, which the provider may have made different from [newName]
+ * if that was taken, or null if it was not renamed.
+ */
+fun renameWorkspaceDocument(context: Context, relPath: String, newName: String) : String? {
+    if(!workspaceRelPathExists(context, relPath)) return null
+    val uri: Uri = getWorkspaceUri(relPath) ?: return null
+    val parent = relPath.substringBeforeLast('/', "")
+    val newUri = try {
+        DocumentsContract.renameDocument(context.contentResolver, uri, newName) ?: return null
+    } catch (e: Exception) {
+        FirebaseCrashlytics.getInstance().recordException(e)
+        return null
+    } finally {
+        DocumentUriCache.onDeleted(uri)
+        WorkspaceFileListeners.onFileChanged(context, relPath, uri)
+        WorkspaceIndex.refresh(relPath)
+        WorkspaceIndex.onChildrenChanged(parent)
+    }
+    //Listing the folder again also refreshes the cached type of the new name.
+    val documentId = DocumentsContract.getDocumentId(newUri)
+    WorkspaceIndex.list(context, parent).find { it.documentId == documentId }?.also { return it.name }
+    val newRelPath = if (parent == "") newName else "$parent/$newName"
+    return if (WorkspaceIndex.exists(context, newRelPath)) newName else null
+}
+
 val DEFAULT_WIDTH: Int = 1500
 val DEFAULT_HEIGHT: Int = 1125
@@ -0,0 +1,158 @@
+package org.sil.storyproducer.tools.file
+
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * The width and height of an image, in pixels, as stored in the file.
+ */
+data class ImageSize(val width: Int, val height: Int)
+
+/**
+ * Reads the size of an image from the first bytes of its file, without decoding it.
+ *
+ * Only the header is read: the IHDR chunk of a PNG, which always comes first, the segments
+ * of a JPEG up to its start of frame, and the first chunk of a WebP.  Like
+ * [android.graphics.BitmapFactory], the size is the stored size, before any EXIF rotation.
+ */
+object ImageHeaders {
+
+    private val PNG_SIGNATURE = byteArrayOf(0x89.toByte(), 'P'.toByte(), 'N'.toByte(), 'G'.toByte(),
+            0x0D, 0x0A, 0x1A, 0x0A)
+    private const val PNG_IHDR = 0x49484452
+
+    private const val JPEG_MARKER = 0xFF
+    private const val JPEG_SOI = 0xD8
+    private const val JPEG_EOI = 0xD9
+    private const val JPEG_SOS = 0xDA
+    private const val JPEG_TEM = 0x01
+
+    private const val WEBP = 0x57454250
+    private const val WEBP_LOSSY = 0x56503820       //"VP8 "
+    private const val WEBP_LOSSLESS = 0x5650384C    //"VP8L"
+    private const val WEBP_EXTENDED = 0x56503858    //"VP8X"
+
+    //Enough for the header of a PNG, and for the EXIF segment and tables at the start of most JPEGs.
+    private const val HEADER_BUFFER_SIZE = 16 * 1024
+
+    /**
+     * Read the size of a PNG, JPEG or WebP.  The stream is read from where it is and is not closed.
+     * @return the size, or null if the stream does not start with a PNG, JPEG or WebP header.
+     */
+    fun readSize(input: InputStream): ImageSize? {
+        val data = DataInputStream(if (input is BufferedInputStream) input else BufferedInputStream(input, HEADER_BUFFER_SIZE))
+        return try {
+            when (data.readUnsignedByte()) {
+                PNG_SIGNATURE[0].toInt() and 0xFF -> readPngSize(data)
+                JPEG_MARKER -> if (data.readUnsignedByte() == JPEG_SOI) readJpegSize(data) else null
+                'R'.toInt() -> readWebpSize(data)
+                else -> null
+            }
+        } catch (e: EOFException) {
+            null
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun readPngSize(data: DataInputStream): ImageSize? {
+        for (i in 1 until PNG_SIGNATURE.size) {
+            if (data.readByte() != PNG_SIGNATURE[i]) return null
+        }
+        //The chunk length, then its type.
+        data.readInt()
+        if (data.readInt() != PNG_IHDR) return null
+        return validSize(data.readInt(), data.readInt())
+    }
+
+    private fun readJpegSize(data: DataInputStream): ImageSize? {
+        while (true) {
+            if (data.readUnsignedByte() != JPEG_MARKER) return null
+            var marker = data.readUnsignedByte()
+            //Any number of fill bytes may come before a marker.
+            while (marker == JPEG_MARKER) marker = data.readUnsignedByte()
+            when {
+                marker == JPEG_TEM || marker in 0xD0..0xD7 -> continue
+                marker == JPEG_SOS || marker == JPEG_EOI -> return null
+            }
+            val length = data.readUnsignedShort()
+            if (length < 2) return null
+            if (isStartOfFrame(marker)) {
+                //Sample precision, then the height and the width.
+                data.readUnsignedByte()
+                val height = data.readUnsignedShort()
+                val width = data.readUnsignedShort()
+                return validSize(width, height)
+            }
+            skipFully(data, length - 2L)
+        }
+    }
+
+    private fun readWebpSize(data: DataInputStream): ImageSize? {
+        //The rest of "RIFF", the file size, then the form type.
+        for (c in "IFF") {
+            if (data.readUnsignedByte() != c.toInt()) return null
+        }
+        data.readInt()
+        if (data.readInt() != WEBP) return null
+        //The first chunk's type, then its size.
+        val chunk = data.readInt()
+        data.readInt()
+        return when (chunk) {
+            WEBP_LOSSY -> {
+                //The frame tag, then the start code.
+                skipFully(data, 3)
+                if (data.readUnsignedByte() != 0x9D || data.readUnsignedByte() != 0x01 || data.readUnsignedByte() != 0x2A) return null
+                validSize(readLittleEndian(data, 2) and 0x3FFF, readLittleEndian(data, 2) and 0x3FFF)
+            }
+            WEBP_LOSSLESS -> {
+                if (data.readUnsignedByte() != 0x2F) return null
+                //14 bits each of the width and height, less one.
+                val bits = readLittleEndian(data, 4)
+                validSize((bits and 0x3FFF) + 1, (bits ushr 14 and 0x3FFF) + 1)
+            }
+            WEBP_EXTENDED -> {
+                //The flags and reserved bits, then 24 bits each of the canvas width and height, less one.
+                skipFully(data, 4)
+                validSize(readLittleEndian(data, 3) + 1, readLittleEndian(data, 3) + 1)
+            }
+            else -> null
+        }
+    }
+
+    private fun readLittleEndian(data: DataInputStream, byteCount: Int): Int {
+        var value = 0
+        for (i in 0 until byteCount) {
+            value = value or (data.readUnsignedByte() shl (8 * i))
+        }
+        return value
+    }
+
+    /**
+     * SOF0 to SOF15, other than the huffman table (C4), extension (C8) and arithmetic coding (CC) markers.
+     */
+    private fun isStartOfFrame(marker: Int): Boolean {
+        return marker in 0xC0..0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC
+    }
+
+    private fun validSize(width: Int, height: Int): ImageSize? {
+        return if (width > 0 && height > 0) ImageSize(width, height) else null
+    }
+
+    private fun skipFully(data: DataInputStream, count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val skipped = data.skip(remaining)
+            if (skipped <= 0) {
+                //skip may stop early without being at the end; read a byte to tell.
+                data.readByte()
+                remaining--
+            } else {
+                remaining -= skipped
+            }
+        }
+    }
+}
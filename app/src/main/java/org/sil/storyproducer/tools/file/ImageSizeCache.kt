@@ -0,0 +1,102 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.graphics.BitmapFactory
+import android.provider.DocumentsContract
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import org.sil.storyproducer.model.Workspace
+import java.io.File
+import java.io.FileWriter
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The sizes of the images in the workspace, kept from one run of the app to the next.
+ *
+ * A size is found once for each version of a file, keyed by its document URI, size and last
+ * modified time as listed by the [WorkspaceIndex], so a changed file is read again and an
+ * unchanged one never is.  Sizes are read from the header with [ImageHeaders], or with a
+ * bounds-only [BitmapFactory] decode for other formats.  New sizes are appended to a file in the
+ * app's cache directory, which is read on first use.
+ */
+object ImageSizeCache {
+
+    private const val FILE_NAME = "image_sizes.txt"
+    //Older entries, mostly of files which have since changed, are dropped past this many.
+    private const val MAX_ENTRIES = 4096
+
+    private val sizes = ConcurrentHashMap<String, ImageSize>()
+    @Volatile
+    private var isLoaded = false
+
+    /**
+     * Get the size of an image, reading it from the file only if it is not known.
+     * @param relPath path relative to the workspace root, e.g. "story name/1.jpg".
+     * @return the size, or null if the file does not exist or is not an image.
+     */
+    fun get(context: Context, relPath: String): ImageSize? {
+        val document = WorkspaceIndex.find(context, relPath) ?: return null
+        if (document.isDirectory || document.size == 0L) return null
+        load(context)
+
+        val uri = DocumentsContract.buildDocumentUriUsingTree(Workspace.workdocfile.uri, document.documentId)
+        val key = "$uri|${document.size}|${document.lastModified}"
+        sizes[key]?.also { return it }
+
+        val size = probe(context, relPath) ?: return null
+        if (sizes.putIfAbsent(key, size) == null) append(context, key, size)
+        return size
+    }
+
+    private fun probe(context: Context, relPath: String): ImageSize? {
+        try {
+            getChildInputStream(context, relPath)?.use { ImageHeaders.readSize(it) }?.also { return it }
+            //Some other format; let the decoder read it.
+            val options = BitmapFactory.Options()
+            options.inJustDecodeBounds = true
+            getChildInputStream(context, relPath)?.use { BitmapFactory.decodeStream(it, null, options) }
+            if (options.outWidth > 0 && options.outHeight > 0) return ImageSize(options.outWidth, options.outHeight)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+        return null
+    }
+
+    private fun load(context: Context) {
+        if (isLoaded) return
+        synchronized(this) {
+            if (isLoaded) return
+            isLoaded = true
+            val file = cacheFile(context)
+            if (!file.exists()) return
+            try {
+                var lines = file.readLines()
+                if (lines.size > MAX_ENTRIES) {
+                    lines = lines.takeLast(MAX_ENTRIES / 2)
+                    file.writeText(lines.joinToString("") { "$it\n" })
+                }
+                for (line in lines) {
+                    val fields = line.split('\t')
+                    if (fields.size != 3) continue
+                    val width = fields[1].toIntOrNull() ?: continue
+                    val height = fields[2].toIntOrNull() ?: continue
+                    sizes[fields[0]] = ImageSize(width, height)
+                }
+            } catch (e: Exception) {
+                FirebaseCrashlytics.getInstance().recordException(e)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun append(context: Context, key: String, size: ImageSize) {
+        try {
+            FileWriter(cacheFile(context), true).use { it.write("$key\t${size.width}\t${size.height}\n") }
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+    }
+
+    private fun cacheFile(context: Context): File {
+        return File(context.cacheDir, FILE_NAME)
+    }
+}
@@ -0,0 +1,30 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.net.Uri
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Tells whatever keeps something made from a workspace file, such as a local copy or a prepared
+ * player, when the file is written, deleted or renamed through FileIO, so that it can be dropped.
+ * Listeners are called on the thread which changed the file, and are given the file's path
+ * relative to the workspace root and its document URI.
+ */
+object WorkspaceFileListeners {
+
+    private val listeners = CopyOnWriteArrayList<(Context, String, Uri) -> Unit>()
+
+    fun add(listener: (Context, String, Uri) -> Unit) {
+        listeners.addIfAbsent(listener)
+    }
+
+    fun remove(listener: (Context, String, Uri) -> Unit) {
+        listeners.remove(listener)
+    }
+
+    internal fun onFileChanged(context: Context, relPath: String, uri: Uri) {
+        for (listener in listeners) {
+            listener(context, relPath, uri)
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.net.Uri
+import android.provider.DocumentsContract
+import androidx.documentfile.provider.DocumentFile
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import org.sil.storyproducer.model.Workspace
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A file or directory in the workspace, as reported by the documents provider.
+ *
+ * @param relPath path relative to the workspace root, e.g. "story name/project/story.json".
+ */
+class WorkspaceDocument(val relPath: String,
+                        val name: String,
+                        val documentId: String,
+                        val mimeType: String,
+                        val size: Long,
+                        val lastModified: Long) {
+
+    val isDirectory: Boolean
+        get() = mimeType == DocumentsContract.Document.MIME_TYPE_DIR
+}
+
+/**
+ * An in-memory index of the workspace tree.
+ *
+ * Each directory is listed with a single [DocumentsContract.buildChildDocumentsUriUsingTree] query,
+ * which returns the name, document ID, MIME type, size and last modified time of every child at
+ * once. [DocumentFile.listFiles] returns only URIs, so every later call to name or isDirectory on
+ * its results is another query. Listings are kept until the directory is changed through FileIO
+ * or [refresh]ed, so existence and listing questions are answered from memory.
+ */
+object WorkspaceIndex {
+
+    private val COLUMNS = arrayOf(
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED)
+
+    //Directory listings, keyed by the relative path of the directory ("" is the workspace root).
+    private val listings = ConcurrentHashMap<String, List<WorkspaceDocument>>()
+
+    //Counts the changes to the index, so that a listing which was overtaken by a change while it
+    //was being queried is not kept.  The maps hold the generation of the last change to the
+    //children of each directory, and of the last refresh of each directory and everything under
+    //it.  Guarded by this object.
+    private var generation: Long = 0
+    private val changedGenerations: MutableMap<String, Long> = mutableMapOf()
+    private val refreshedGenerations: MutableMap<String, Long> = mutableMapOf()
+
+    /**
+     * List the children of a workspace directory, querying the documents provider only if the
+     * directory is not yet indexed.
+     * @return the children, or an empty list if the directory does not exist.
+     */
+    fun list(context: Context, relPath: String = ""): List<WorkspaceDocument> {
+        val dirPath = relPath.trim('/')
+        listings[dirPath]?.let { return it }
+        val startGeneration = synchronized(this) { generation }
+
+        val documentId = if (dirPath == "") {
+            rootDocumentId() ?: return listOf()
+        } else {
+            val dir = find(context, dirPath) ?: return listOf()
+            if (!dir.isDirectory) return listOf()
+            dir.documentId
+        }
+        //Do not remember a failed query; try again next time.
+        val children = query(context, dirPath, documentId) ?: return listOf()
+        synchronized(this) {
+            if (lastChanged(dirPath) <= startGeneration) listings[dirPath] = children
+        }
+        return children
+    }
+
+    /**
+     * Find a file or directory by its path relative to the workspace root.
+     * @return the document, or null if it does not exist.
+     */
+    fun find(context: Context, relPath: String): WorkspaceDocument? {
+        val path = relPath.trim('/')
+        if (path == "") return null
+        val name = path.substringAfterLast('/')
+        val parent = path.substringBeforeLast('/', "")
+        return list(context, parent).find { it.name == name }
+    }
+
+    fun exists(context: Context, relPath: String): Boolean {
+        return find(context, relPath) != null
+    }
+
+    /**
+     * Make a [DocumentFile] for a document, for code which needs one.
+     */
+    fun documentFile(context: Context, document: WorkspaceDocument): DocumentFile? {
+        val treeUri = Workspace.workdocfile.uri
+        return DocumentFile.fromSingleUri(context,
+                DocumentsContract.buildDocumentUriUsingTree(treeUri, document.documentId))
+    }
+
+    /**
+     * Forget the listing of a single directory after one of its children was created, deleted or
+     * written. Listings of its subdirectories are kept.
+     */
+    @Synchronized
+    fun onChildrenChanged(relPath: String) {
+        val dirPath = relPath.trim('/')
+        changedGenerations[dirPath] = ++generation
+        listings.remove(dirPath)
+    }
+
+    /**
+     * Forget the listings of a directory and everything under it, so that they are read again
+     * from the documents provider.
+     */
+    @Synchronized
+    fun refresh(relPath: String) {
+        val dirPath = relPath.trim('/')
+        if (dirPath == "") {
+            invalidate()
+            return
+        }
+        refreshedGenerations[dirPath] = ++generation
+        listings.keys.removeAll { it == dirPath || it.startsWith("$dirPath/") }
+    }
+
+    /**
+     * Forget everything. Call this when the workspace changes.
+     */
+    @Synchronized
+    fun invalidate() {
+        changedGenerations.clear()
+        refreshedGenerations.clear()
+        refreshedGenerations[""] = ++generation
+        listings.clear()
+    }
+
+    /**
+     * @return the generation of the last change which made a listing of the directory out of date.
+     */
+    private fun lastChanged(dirPath: String): Long {
+        var last = changedGenerations[dirPath] ?: 0
+        var path = dirPath
+        while (true) {
+            last = Math.max(last, refreshedGenerations[path] ?: 0)
+            if (path == "") return last
+            path = path.substringBeforeLast('/', "")
+        }
+    }
+
+    private fun rootDocumentId(): String? {
+        return try {
+            DocumentsContract.getDocumentId(Workspace.workdocfile.uri)
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun query(context: Context, dirPath: String, documentId: String): List<WorkspaceDocument>? {
+        val treeUri = Workspace.workdocfile.uri
+        val children: MutableList<WorkspaceDocument> = ArrayList()
+        try {
+            context.contentResolver.query(
+                    DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId),
+                    COLUMNS, null, null, null)?.use { cursor ->
+                while (cursor.moveToNext()) {
+                    val name = cursor.getString(0) ?: continue
+                    children.add(WorkspaceDocument(
+                            if (dirPath == "") name else "$dirPath/$name",
+                            name,
+                            cursor.getString(1),
+                            cursor.getString(2) ?: "",
+                            if (cursor.isNull(3)) 0 else cursor.getLong(3),
+                            if (cursor.isNull(4)) 0 else cursor.getLong(4)))
+                }
+            }
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            return null
+        }
+
+        //Every child is now known to exist, so single lookups need not ask the provider again.
+        val parentUri = treeUri.toString() + if (dirPath == "") "" else Uri.encode("/$dirPath")
+        for (child in children) {
+            DocumentUriCache.onCreated(Uri.parse(parentUri + Uri.encode("/${child.name}")), child.mimeType)
+        }
+        return children
+    }
+}
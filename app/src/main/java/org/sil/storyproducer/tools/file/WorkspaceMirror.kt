@@ -0,0 +1,158 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.util.Log
+import androidx.preference.PreferenceManager
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import org.sil.storyproducer.R
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * An opt-in, read-through copy of workspace files in app-private storage.
+ *
+ * Reading through the Storage Access Framework costs a provider round trip per file, and on
+ * external SD cards the provider itself is slow. When the mirror is enabled, the first read of a
+ * file copies it into the app's cache directory; later reads use the plain [File]. A copy is only
+ * used while its size and modification time match the [WorkspaceIndex] entry for the original.
+ *
+ * The workspace stays the only place that is written to. Writes (e.g. new recordings) go straight
+ * to the workspace, and FileIO drops the mirrored copy, which is refreshed on the next read.
+ *
+ * The mirror is kept under [MAX_MIRROR_BYTES] by evicting whole stories, least recently used first.
+ */
+object WorkspaceMirror {
+
+    private const val TAG = "WorkspaceMirror"
+    private const val MIRROR_DIR = "workspace_mirror"
+    private const val MAX_MIRROR_BYTES: Long = 256 * 1024 * 1024
+
+    //Stories used in this session, with the time they were last used.
+    private val storyLastUsed = ConcurrentHashMap<String, Long>()
+
+    fun isEnabled(context: Context): Boolean {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(context.getString(R.string.workspace_mirror_enabled), false)
+    }
+
+    fun setEnabled(context: Context, enabled: Boolean) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(context.getString(R.string.workspace_mirror_enabled), enabled).apply()
+        if (!enabled) clear(context)
+    }
+
+    /**
+     * Get a local copy of a story file, copying it from the workspace if needed.
+     * @return the local copy, or null if the mirror is disabled or the file could not be copied.
+     */
+    fun getStoryFile(context: Context, relPath: String, dirRoot: String): File? {
+        if (dirRoot == "" || relPath == "") return null
+        return getFile(context, "$dirRoot/$relPath")
+    }
+
+    /**
+     * Get a local copy of a workspace file, copying it from the workspace if needed.
+     * @return the local copy, or null if the mirror is disabled or the file could not be copied.
+     */
+    fun getFile(context: Context, relPath: String): File? {
+        if (!isEnabled(context)) return null
+        val document = WorkspaceIndex.find(context, relPath) ?: return null
+        if (document.isDirectory) return null
+
+        storyLastUsed[relPath.substringBefore('/')] = System.currentTimeMillis()
+        val file = File(mirrorDir(context), relPath)
+        if (isCurrent(file, document)) return file
+
+        return if (copy(context, document, file)) {
+            trim(context, relPath.substringBefore('/'))
+            file
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Drop the local copy of a workspace file (or directory) after it was written or deleted.
+     */
+    fun invalidate(context: Context, relPath: String) {
+        val file = File(mirrorDir(context), relPath)
+        if (file.exists()) file.deleteRecursively()
+    }
+
+    /**
+     * Drop the local copies of all files in a story.
+     */
+    fun evictStory(context: Context, storyTitle: String) {
+        if (storyTitle == "") return
+        File(mirrorDir(context), storyTitle).deleteRecursively()
+        storyLastUsed.remove(storyTitle)
+    }
+
+    fun clear(context: Context) {
+        mirrorDir(context).deleteRecursively()
+        storyLastUsed.clear()
+    }
+
+    private fun mirrorDir(context: Context): File {
+        return File(context.cacheDir, MIRROR_DIR)
+    }
+
+    private fun isCurrent(file: File, document: WorkspaceDocument): Boolean {
+        //Some file systems only keep whole seconds.
+        return file.length() == document.size &&
+                file.lastModified() / 1000 == document.lastModified / 1000
+    }
+
+    private fun copy(context: Context, document: WorkspaceDocument, file: File): Boolean {
+        val dir = file.parentFile ?: return false
+        if (!dir.isDirectory && !dir.mkdirs()) return false
+        //Copy to a temporary name first, so that a half copied file is never used.
+        val tempFile = File.createTempFile(file.name, ".tmp", dir)
+        try {
+            val pfd = getPFD(context, document.relPath) ?: return false
+            pfd.use {
+                FileInputStream(it.fileDescriptor).channel.use { input ->
+                    FileOutputStream(tempFile).channel.use { output ->
+                        var position: Long = 0
+                        val size = input.size()
+                        while (position < size) {
+                            val count = input.transferTo(position, size - position, output)
+                            if (count <= 0) break
+                            position += count
+                        }
+                    }
+                }
+            }
+            if (tempFile.length() != document.size || !tempFile.renameTo(file)) return false
+            file.setLastModified(document.lastModified)
+            return isCurrent(file, document)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            return false
+        } finally {
+            tempFile.delete()
+        }
+    }
+
+    /**
+     * Evict least recently used stories until the mirror fits in [MAX_MIRROR_BYTES].
+     */
+    @Synchronized
+    private fun trim(context: Context, activeStory: String) {
+        val storyDirs = mirrorDir(context).listFiles()?.filter { it.isDirectory } ?: return
+        val sizes = storyDirs.associateWith { dir -> dir.walk().filter { it.isFile }.map { it.length() }.sum() }
+        var total = sizes.values.sum()
+        if (total <= MAX_MIRROR_BYTES) return
+
+        val byAge = storyDirs.filter { it.name != activeStory }
+                .sortedBy { storyLastUsed[it.name] ?: it.lastModified() }
+        for (dir in byAge) {
+            if (total <= MAX_MIRROR_BYTES) break
+            Log.i(TAG, "Evicting ${dir.name} from the workspace mirror")
+            evictStory(context, dir.name)
+            total -= sizes[dir] ?: 0
+        }
+    }
+}
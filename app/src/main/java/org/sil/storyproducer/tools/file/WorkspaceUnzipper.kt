@@ -0,0 +1,161 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import net.lingala.zip4j.ZipFile
+import net.lingala.zip4j.model.FileHeader
+import net.lingala.zip4j.model.enums.CompressionMethod
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Extracts a zip archive in the workspace (e.g. a .bloom or .bloomd template) into a workspace folder.
+ *
+ * When the documents provider gives a seekable file descriptor, the archive is read in place
+ * instead of being copied into app storage first. All folders are created up front, then the
+ * files are extracted in parallel with [FileCopier]. Entries stored without compression (often
+ * images and audio, which are compressed already) are copied straight out of the archive with
+ * [FileChannel.transferTo].
+ */
+object WorkspaceUnzipper {
+
+    //Fixed part of a zip local file header, and where the name and extra field lengths are in it.
+    private const val LOCAL_HEADER_SIZE = 30
+    private const val LOCAL_HEADER_LENGTHS_OFFSET = 26
+
+    /**
+     * @param zipRelPath the archive, relative to the workspace root.
+     * @param destRelPath the folder to extract into, relative to the workspace root.
+     * @return whether every file was extracted. Files which already exist are left alone.
+     */
+    fun unzip(context: Context, zipRelPath: String, destRelPath: String): Boolean {
+        val pfd = getPFD(context, zipRelPath) ?: return false
+        var localCopy: File? = null
+        var localChannel: FileChannel? = null
+        var openedZipFile: ZipFile? = null
+        try {
+            val archivePath: String
+            val archive: FileChannel
+            if (isSeekable(pfd)) {
+                archivePath = "/proc/self/fd/${pfd.fd}"
+                //Not closed on its own; closing pfd closes the file.
+                archive = FileInputStream(pfd.fileDescriptor).channel
+            } else {
+                //The provider can only stream the archive; copy it somewhere it can be read at random.
+                localCopy = File(context.cacheDir, zipRelPath.substringAfterLast('/'))
+                if (!copyToFilesDir(context, getWorkspaceUri(zipRelPath)!!, localCopy)) return false
+                archivePath = localCopy.absolutePath
+                localChannel = RandomAccessFile(localCopy, "r").channel
+                archive = localChannel
+            }
+
+            val zipFile = ZipFile(archivePath)
+            openedZipFile = zipFile
+            val entries: MutableMap<String, FileHeader> = linkedMapOf()
+            val folders: MutableSet<String> = sortedSetOf(destRelPath)
+            for (header in zipFile.fileHeaders) {
+                val relPath = entryRelPath(destRelPath, header.fileName) ?: continue
+                if (header.isDirectory) {
+                    folders.add(relPath)
+                } else {
+                    folders.add(relPath.substringBeforeLast('/'))
+                    entries[relPath] = header
+                }
+            }
+
+            //Create every folder once, so that parallel extraction never creates one twice.
+            //Parents sort before their children.
+            for (folder in folders) {
+                createWorkspaceDirectory(context, folder) ?: return false
+            }
+            val existing = folders.flatMap { folder -> WorkspaceIndex.list(context, folder).map { it.relPath } }.toSet()
+
+            val extractions = entries.filterKeys { it !in existing }.map { (relPath, header) ->
+                { extract(context, zipFile, archive, header, relPath) }
+            }
+            return FileCopier.copyInParallel(extractions)
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            return false
+        } finally {
+            //Only runs once the parallel extraction has finished with the archive.
+            //zip4j 2.3.1 closes the archive after each read, but later versions keep it open until
+            //the ZipFile is closed.
+            (openedZipFile as? Closeable)?.close()
+            localChannel?.close()
+            localCopy?.delete()
+            pfd.close()
+        }
+    }
+
+    /**
+     * @return where an entry of the archive is extracted to, or null if it would be outside of the
+     * destination folder.
+     */
+    internal fun entryRelPath(destRelPath: String, entryName: String): String? {
+        val entryPath = entryName.replace('\\', '/').trim('/')
+        if (entryPath == "" || entryPath.split('/').contains("..")) return null
+        return "$destRelPath/$entryPath"
+    }
+
+    private fun isSeekable(pfd: ParcelFileDescriptor): Boolean {
+        return try {
+            Os.lseek(pfd.fileDescriptor, 0, OsConstants.SEEK_CUR)
+            true
+        } catch (e: ErrnoException) {
+            false
+        }
+    }
+
+    private fun extract(context: Context, zipFile: ZipFile, archive: FileChannel,
+                        header: FileHeader, relPath: String): Boolean {
+        return try {
+            val output = ParcelFileDescriptor.AutoCloseOutputStream(getPFD(context, relPath, "", "w")
+                    ?: return false)
+            if (header.compressionMethod == CompressionMethod.STORE && !header.isEncrypted) {
+                output.use { transferStored(archive, header, it.channel) }
+                true
+            } else {
+                FileCopier.isWhole(FileCopier.copy(zipFile.getInputStream(header), output),
+                        header.uncompressedSize)
+            }
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+            false
+        }
+    }
+
+    /**
+     * Copy the data of an uncompressed entry straight from the archive.
+     */
+    @Throws(IOException::class)
+    private fun transferStored(archive: FileChannel, header: FileHeader, output: FileChannel) {
+        val lengths = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+        while (lengths.hasRemaining()) {
+            if (archive.read(lengths, header.offsetLocalHeader + LOCAL_HEADER_LENGTHS_OFFSET + lengths.position()) < 0) {
+                throw IOException("Unexpected end of archive")
+            }
+        }
+        val nameLength = lengths.getShort(0).toInt() and 0xFFFF
+        val extraLength = lengths.getShort(2).toInt() and 0xFFFF
+        val dataOffset = header.offsetLocalHeader + LOCAL_HEADER_SIZE + nameLength + extraLength
+
+        val size = header.compressedSize
+        var copied: Long = 0
+        while (copied < size) {
+            val count = archive.transferTo(dataOffset + copied, size - copied, output)
+            if (count <= 0) throw IOException("Unexpected end of archive")
+            copied += count
+        }
+    }
+}
@@ -5,39 +5,53 @@ import android.media.MediaPlayer
 import android.net.Uri
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.file.getStoryUri
-import java.io.IOException
 
+/**
+ * Plays one audio file at a time, with a player from the [AudioPlayerPool].
+ *
+ * Setting a source never waits for the player to be prepared.  Until it is, playing, seeking and
+ * the volume are remembered and applied once it is ready; see [onPrepared].
+ */
 class AudioPlayer {
 
-    private var mPlayer: MediaPlayer
+    private var mPooled: AudioPlayerPool.PooledPlayer? = null
     private var fileExists: Boolean = false
     private var onCompletionListenerPersist: MediaPlayer.OnCompletionListener? = null
+    private var onPreparedListenerPersist: (() -> Unit)? = null
+    private var mPlayWhenPrepared = false
+    private var mPendingPosition = 0
+    private var mVolume = 1.0f
+
+    //Only set once the player is prepared.
+    private val mPlayer: MediaPlayer?
+        get() = if (isAudioPrepared) mPooled?.player else null
 
     var currentPosition: Int
         get() =
-            try{ mPlayer.currentPosition
+            try{ mPlayer?.currentPosition ?: mPendingPosition
             } catch (e : Exception){ 0 }
         set(value) {
             try {
-                mPlayer.seekTo(value)
+                val player = mPlayer
+                if (player != null) player.seekTo(value) else mPendingPosition = value
             } catch (e : Exception) {}
         }
 
     /**
-     * returns the duration of the audio as an int in milliseconds
+     * returns the duration of the audio as an int in milliseconds, or 0 until it is prepared
      * @return the duration of the audio as an int
      */
     val audioDurationInMilliseconds: Int
-        get() = mPlayer.duration
+        get() = mPlayer?.duration ?: 0
 
     /**
-     * returns if the audio is being played or not
+     * returns if the audio is being played, or will be once it is prepared
      * @return true or false based on if the audio is being played
      */
     val isAudioPlaying: Boolean
         get() {
             try {
-                return mPlayer.isPlaying
+                return mPlayWhenPrepared || mPlayer?.isPlaying == true
             } catch (e: IllegalStateException) {
                 return false
             }
@@ -47,29 +61,19 @@ class AudioPlayer {
     var isAudioPrepared: Boolean = false
         private set
 
-    /**
-     * Constructor for Audio Player, no params
-     */
-    init {
-        mPlayer = MediaPlayer()
-        fileExists = false
-    }
-
     fun setSource(context: Context, uri: Uri) : Boolean {
-        try {
-            mPlayer.release()
-            mPlayer = MediaPlayer()
-            mPlayer.setOnCompletionListener(onCompletionListenerPersist)
-            mPlayer.setDataSource(context, uri)
-            fileExists = true
-            isAudioPrepared = true
-            mPlayer.prepare()
-            currentPosition = 0
-        } catch (e: Exception) {
-            //TODO maybe do something with this exception
+        releasePlayer()
+        mPendingPosition = 0
+        val pooled = AudioPlayerPool.acquire(context, uri)
+        if (pooled == null) {
+            //TODO maybe do something with this failure
             fileExists = false
-            isAudioPrepared = false
+            return false
         }
+        mPooled = pooled
+        fileExists = true
+        pooled.player.setOnCompletionListener(onCompletionListenerPersist)
+        pooled.whenReady { onReady(it) }
         return fileExists
     }
     /**
@@ -83,6 +87,24 @@ class AudioPlayer {
         return setSource(context, uri)
     }
 
+    private fun onReady(pooled: AudioPlayerPool.PooledPlayer) {
+        //Another source was set in the meantime.
+        if (pooled !== mPooled) return
+        if (pooled.isFailed) {
+            fileExists = false
+            mPlayWhenPrepared = false
+            return
+        }
+        isAudioPrepared = true
+        try {
+            pooled.player.setVolume(mVolume, mVolume)
+            pooled.player.seekTo(mPendingPosition)
+            if (mPlayWhenPrepared) pooled.player.start()
+        } catch (e: Exception) {}
+        mPlayWhenPrepared = false
+        onPreparedListenerPersist?.invoke()
+    }
+
     fun playAudio() {
         currentPosition = 0
         resumeAudio()
@@ -92,9 +114,10 @@ class AudioPlayer {
      * Pauses the audio if it is currently being played
      */
     fun pauseAudio() {
+        mPlayWhenPrepared = false
         try {
-            if(mPlayer.isPlaying)
-                mPlayer.pause()
+            if(mPlayer?.isPlaying == true)
+                mPlayer?.pause()
         } catch (e: Exception) {}
     }
 
@@ -104,7 +127,8 @@ class AudioPlayer {
     fun resumeAudio() {
         try {
             if(fileExists) {
-                mPlayer.start()
+                val player = mPlayer
+                if (player != null) player.start() else mPlayWhenPrepared = true
             }
         } catch (e: Exception) { }
 
@@ -114,19 +138,27 @@ class AudioPlayer {
      * Stops the audio if it is currently being played
      */
     fun stopAudio() {
+        mPlayWhenPrepared = false
         try {
-            if(mPlayer.isPlaying) mPlayer.pause()
+            if(mPlayer?.isPlaying == true) mPlayer?.pause()
             if(currentPosition != 0) currentPosition = 0
         } catch (e: Exception) {}
     }
 
     /**
-     * Releases the MediaPlayer object after completion
+     * Gives the player back to the pool, where it stays prepared for a while
      */
     fun release() {
+        releasePlayer()
+    }
+
+    private fun releasePlayer() {
         isAudioPrepared = false
+        mPlayWhenPrepared = false
+        val pooled = mPooled ?: return
+        mPooled = null
         try {
-            mPlayer.release()
+            AudioPlayerPool.recycle(pooled)
         } catch (e : Exception) {}
     }
 
@@ -136,7 +168,7 @@ class AudioPlayer {
      */
     fun seekTo(msec: Int) {
         if(!fileExists) return
-        mPlayer.seekTo(msec)
+        currentPosition = msec
     }
 
     /**
@@ -145,7 +177,16 @@ class AudioPlayer {
      */
     fun onPlayBackStop(listener: MediaPlayer.OnCompletionListener) {
         onCompletionListenerPersist = listener
-        mPlayer.setOnCompletionListener(listener)
+        mPooled?.player?.setOnCompletionListener(listener)
+    }
+
+    /**
+     * sets a listener for when each source is prepared, called right away if it already is
+     * @param listener called on the main thread
+     */
+    fun onPrepared(listener: () -> Unit) {
+        onPreparedListenerPersist = listener
+        if (isAudioPrepared) listener()
     }
 
     /**
@@ -153,7 +194,10 @@ class AudioPlayer {
      * @param volume the float for the volume from 0.0 to 1.0
      */
     fun setVolume(volume: Float) {
-        mPlayer.setVolume(volume, volume)
+        mVolume = volume
+        try {
+            mPlayer?.setVolume(volume, volume)
+        } catch (e: Exception) {}
     }
 
     companion object {
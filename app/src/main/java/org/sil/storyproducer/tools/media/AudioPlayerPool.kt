@@ -0,0 +1,180 @@
+package org.sil.storyproducer.tools.media
+
+import android.content.Context
+import android.media.MediaPlayer
+import android.net.Uri
+import android.util.Log
+
+/**
+ * Keeps a few [MediaPlayer]s prepared for the audio files which were played or prefetched last.
+ *
+ * Players are prepared with [MediaPlayer.prepareAsync], so the calling thread never waits on the
+ * file, and a file which is played again, such as when switching between the recordings of a
+ * slide, starts without being prepared again.  Players which are not in use are released when
+ * there are more than [MAX_IDLE_PLAYERS], when their file is written or deleted, and when memory
+ * is low.  The players' callbacks are made on the main thread.
+ */
+object AudioPlayerPool {
+
+    private const val TAG = "AudioPlayerPool"
+    private const val MAX_IDLE_PLAYERS = 4
+
+    /**
+     * A player, which may still be preparing, and the file it plays.
+     */
+    class PooledPlayer internal constructor(val uri: String, val player: MediaPlayer, internal val version: Int) {
+
+        @Volatile
+        var isPrepared = false
+            private set
+        @Volatile
+        var isFailed = false
+            private set
+        private var onReady: ((PooledPlayer) -> Unit)? = null
+
+        internal fun prepareAsync() {
+            player.setOnPreparedListener {
+                isPrepared = true
+                takeOnReady()?.invoke(this)
+            }
+            player.setOnErrorListener { _, what, extra ->
+                Log.w(TAG, "Player for $uri failed: $what, $extra")
+                isFailed = true
+                takeOnReady()?.invoke(this)
+                true
+            }
+            player.prepareAsync()
+        }
+
+        /**
+         * Call [listener] once the player is prepared or has failed, or right away if it already has.
+         * Only the last listener is called.
+         */
+        fun whenReady(listener: (PooledPlayer) -> Unit) {
+            synchronized(this) {
+                if (!isPrepared && !isFailed) {
+                    onReady = listener
+                    return
+                }
+            }
+            listener(this)
+        }
+
+        @Synchronized
+        internal fun takeOnReady(): ((PooledPlayer) -> Unit)? {
+            val listener = onReady
+            onReady = null
+            return listener
+        }
+    }
+
+    //The players not in use, least recently used first.  Guarded by this object.
+    private val idle = LinkedHashMap<String, PooledPlayer>(16, 0.75f, true)
+    //Bumped each time a file is written, so players of the old contents are not reused.
+    private val versions: MutableMap<String, Int> = mutableMapOf()
+
+    /**
+     * Start preparing a player for a file, if there is not one already.  May be called on any thread.
+     */
+    fun prepare(context: Context, uri: Uri) {
+        val key = uri.toString()
+        synchronized(this) {
+            if (idle[key]?.let { isUsable(it) } == true) return
+        }
+        val pooled = create(context, uri) ?: return
+        synchronized(this) {
+            if (idle.containsKey(key)) {
+                pooled.player.release()
+                return
+            }
+            idle[key] = pooled
+            trim()
+        }
+    }
+
+    /**
+     * Take a player for a file, which may still be preparing; see [PooledPlayer.whenReady].
+     * Give it back with [recycle] when done with it.
+     * @return null if the file can not be opened.
+     */
+    fun acquire(context: Context, uri: Uri): PooledPlayer? {
+        synchronized(this) {
+            val pooled = idle.remove(uri.toString())
+            if (pooled != null) {
+                if (isUsable(pooled)) return pooled
+                pooled.player.release()
+            }
+        }
+        return create(context, uri)
+    }
+
+    /**
+     * Give back a player from [acquire], to be reused for the same file.
+     */
+    fun recycle(pooled: PooledPlayer) {
+        pooled.takeOnReady()
+        try {
+            pooled.player.setOnCompletionListener(null)
+            if (pooled.isPrepared) {
+                if (pooled.player.isPlaying) pooled.player.pause()
+                pooled.player.seekTo(0)
+            }
+        } catch (e: IllegalStateException) {
+            pooled.player.release()
+            return
+        }
+        synchronized(this) {
+            if (!isUsable(pooled) || idle.containsKey(pooled.uri)) {
+                pooled.player.release()
+                return
+            }
+            idle[pooled.uri] = pooled
+            trim()
+        }
+    }
+
+    /**
+     * Forget the players of a file which was written, renamed or deleted.
+     */
+    @Synchronized
+    fun invalidate(uri: Uri?) {
+        val key = uri?.toString() ?: return
+        versions[key] = (versions[key] ?: 0) + 1
+        idle.remove(key)?.player?.release()
+    }
+
+    /**
+     * Release every player which is not in use.
+     */
+    @Synchronized
+    fun clear() {
+        idle.values.forEach { it.player.release() }
+        idle.clear()
+    }
+
+    private fun create(context: Context, uri: Uri): PooledPlayer? {
+        val player = MediaPlayer()
+        return try {
+            player.setDataSource(context.applicationContext, uri)
+            val key = uri.toString()
+            val pooled = PooledPlayer(key, player, synchronized(this) { versions[key] ?: 0 })
+            pooled.prepareAsync()
+            pooled
+        } catch (e: Exception) {
+            player.release()
+            null
+        }
+    }
+
+    private fun isUsable(pooled: PooledPlayer): Boolean {
+        return !pooled.isFailed && pooled.version == (versions[pooled.uri] ?: 0)
+    }
+
+    private fun trim() {
+        val iterator = idle.values.iterator()
+        while (idle.size > MAX_IDLE_PLAYERS && iterator.hasNext()) {
+            iterator.next().player.release()
+            iterator.remove()
+        }
+    }
+}
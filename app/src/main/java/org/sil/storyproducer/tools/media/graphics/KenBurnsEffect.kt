@@ -50,6 +50,15 @@ class KenBurnsEffect
      * @return stretch of original image over screen size to make crop
      */
     fun revInterpolate(position: Float, scrWidth: Int, scrHeight: Int, imWidth: Int, imHeight: Int, downSample: Float): RectF {
+        return revInterpolate(position, scrWidth, scrHeight, imWidth, imHeight, downSample, RectF())
+    }
+
+    /**
+     * Same as [revInterpolate], but writes the result into [out] instead of allocating a new
+     * rectangle, for use on a per-frame basis.
+     * @return out
+     */
+    fun revInterpolate(position: Float, scrWidth: Int, scrHeight: Int, imWidth: Int, imHeight: Int, downSample: Float, out: RectF): RectF {
         var pos = position
         //Clamp position to [0, 1]
         if (pos < 0) {
@@ -73,7 +82,8 @@ class KenBurnsEffect
         val left = -irL/irW*scrWidth
         val right = ((imWidth-irR)/irW + 1)*scrWidth
 
-        return RectF(left, top, right, bottom)
+        out.set(left, top, right, bottom)
+        return out
     }
 
 
@@ -0,0 +1,66 @@
+package org.sil.storyproducer.tools.media.graphics
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.ColorFilter
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PixelFormat
+import android.graphics.Rect
+import android.graphics.drawable.Drawable
+
+/**
+ * Draws a slide's image center cropped to the drawable's bounds, with the slide's text on top.
+ *
+ * The crop is a matrix applied while drawing, so no scaled or cropped copy of the image is made
+ * and the image itself can be shared with other users of the [org.sil.storyproducer.service.BitmapCache].
+ *
+ * @param bitmap the image, which is never changed.
+ * @param width the intrinsic width, which the text is laid out for.
+ * @param height the intrinsic height, which the text is laid out for.
+ */
+class SlideDrawable(val bitmap: Bitmap, private val mOverlay: TextOverlay?,
+                    private val mWidth: Int, private val mHeight: Int) : Drawable() {
+
+    private val mPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.DITHER_FLAG)
+    private val mMatrix = Matrix()
+
+    override fun onBoundsChange(bounds: Rect) {
+        super.onBoundsChange(bounds)
+        val scale = Math.max(bounds.width().toFloat() / bitmap.width,
+                bounds.height().toFloat() / bitmap.height)
+        mMatrix.setScale(scale, scale)
+        mMatrix.postTranslate(bounds.left + (bounds.width() - bitmap.width * scale) / 2f,
+                bounds.top + (bounds.height() - bitmap.height * scale) / 2f)
+    }
+
+    override fun draw(canvas: Canvas) {
+        val bounds = bounds
+        if (bounds.isEmpty) return
+
+        val saveCount = canvas.save()
+        canvas.clipRect(bounds)
+        canvas.drawBitmap(bitmap, mMatrix, mPaint)
+        if (mOverlay != null) {
+            canvas.translate(bounds.left.toFloat(), bounds.top.toFloat())
+            mOverlay.draw(canvas, bounds.width(), bounds.height())
+        }
+        canvas.restoreToCount(saveCount)
+    }
+
+    override fun getIntrinsicWidth(): Int = mWidth
+
+    override fun getIntrinsicHeight(): Int = mHeight
+
+    override fun setAlpha(alpha: Int) {
+        mPaint.alpha = alpha
+        invalidateSelf()
+    }
+
+    override fun setColorFilter(colorFilter: ColorFilter?) {
+        mPaint.colorFilter = colorFilter
+        invalidateSelf()
+    }
+
+    override fun getOpacity(): Int = PixelFormat.OPAQUE
+}
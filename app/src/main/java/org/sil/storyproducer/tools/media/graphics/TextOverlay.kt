@@ -1,5 +1,6 @@
 package org.sil.storyproducer.tools.media.graphics
 
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
@@ -7,6 +8,11 @@ import android.text.Layout
 import android.text.StaticLayout
 import android.text.TextPaint
 
+/**
+ * Text drawn on top of a slide image. The text and its outline are laid out once per canvas size
+ * and rendered into a cached bitmap, so changing the alpha (e.g. during a cross-fade) only costs
+ * a single blit per frame.
+ */
 class TextOverlay(private val mText: String) {
     private var mFontSize = 18
     private var mAlpha = 1f
@@ -32,10 +38,32 @@ class TextOverlay(private val mText: String) {
     private var mTranslateX: Float = 0.toFloat()
     private var mTranslateY: Float = 0.toFloat()
 
+    //Pre-rendered text and outline. Alpha is applied through mBlitPaint at draw time.
+    private var mCachedBitmap: Bitmap? = null
+    private var mCacheMargin: Int = 0
+    private val mBlitPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+
+    /**
+     * Draw the overlay with the given alpha. This is safe to call from multiple threads at once.
+     */
+    @Synchronized
+    fun draw(canvas: Canvas, alpha: Float) {
+        setAlpha(alpha)
+        draw(canvas)
+    }
+
     fun draw(canvas: Canvas) {
-        if (mCanvasWidth != canvas.width || mCanvasHeight != canvas.height) {
-            mCanvasWidth = canvas.width
-            mCanvasHeight = canvas.height
+        draw(canvas, canvas.width, canvas.height)
+    }
+
+    /**
+     * Draw the overlay as if the canvas were [width] by [height], e.g. when drawing into part of a view.
+     */
+    @Synchronized
+    fun draw(canvas: Canvas, width: Int, height: Int) {
+        if (mCanvasWidth != width || mCanvasHeight != height) {
+            mCanvasWidth = width
+            mCanvasHeight = height
             mIsDirty = true
         }
 
@@ -43,11 +71,28 @@ class TextOverlay(private val mText: String) {
             setup()
         }
 
-        canvas.save()
-        canvas.translate(mTranslateX, mTranslateY)
-        mTextOutlineLayout!!.draw(canvas)
-        mTextLayout!!.draw(canvas)
-        canvas.restore()
+        val cached = mCachedBitmap
+        if (cached != null) {
+            mBlitPaint.alpha = (mAlpha * 255).toInt()
+            canvas.drawBitmap(cached, mTranslateX - mCacheMargin, mTranslateY - mCacheMargin, mBlitPaint)
+        } else {
+            //Nothing to cache (e.g. empty text); fall back to drawing the layouts directly.
+            canvas.save()
+            canvas.translate(mTranslateX, mTranslateY)
+            mTextOutlineLayout!!.draw(canvas)
+            mTextLayout!!.draw(canvas)
+            canvas.restore()
+        }
+    }
+
+    /**
+     * Release the cached rendering. The overlay will be rebuilt the next time it is drawn.
+     */
+    @Synchronized
+    fun recycle() {
+        mCachedBitmap?.recycle()
+        mCachedBitmap = null
+        mIsDirty = true
     }
 
     /**
@@ -59,10 +104,13 @@ class TextOverlay(private val mText: String) {
         mIsDirty = true
     }
 
+    /**
+     * Set the alpha of the overlay. This does not invalidate the cached layout; the alpha is
+     * applied when the cached rendering is drawn.
+     */
     fun setAlpha(alpha: Float) {
         mAlpha = alpha
-        mIsDirty = true
-        if (mTextPaint != null && mTextOutlinePaint != null) {
+        if (mCachedBitmap == null && mTextPaint != null && mTextOutlinePaint != null) {
             mTextPaint!!.alpha = (mAlpha * 255).toInt()
             mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
         }
@@ -83,12 +131,10 @@ class TextOverlay(private val mText: String) {
 
         mTextPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
         mTextPaint!!.color = mTextColor
-        mTextPaint!!.alpha = (mAlpha * 255).toInt()
         mTextPaint!!.textSize = mFontSize * fontSizeScale
 
         mTextOutlinePaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
         mTextOutlinePaint!!.color = mOutlineColor
-        mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
         mTextOutlinePaint!!.textSize = mTextPaint!!.textSize
         mTextOutlinePaint!!.style = Paint.Style.STROKE
         mTextOutlinePaint!!.strokeWidth = mFontSize.toFloat() * 0.1f * fontSizeScale
@@ -124,9 +170,36 @@ class TextOverlay(private val mText: String) {
             else -> mTranslateY = mPaddingActual.toFloat()
         }
 
+        renderCache()
+
         mIsDirty = false
     }
 
+    /**
+     * Render the text outline and text, fully opaque, into a bitmap just large enough to hold them.
+     * The outline stroke can extend past the layout bounds, so a margin is kept around the text.
+     */
+    private fun renderCache() {
+        mCachedBitmap?.recycle()
+        mCachedBitmap = null
+
+        mCacheMargin = Math.ceil(mTextOutlinePaint!!.strokeWidth.toDouble()).toInt()
+        val cacheWidth = mTextWidth + 2 * mCacheMargin
+        val cacheHeight = mTextHeight + 2 * mCacheMargin
+        if (mTextWidth <= 0 || mTextHeight <= 0) {
+            mTextPaint!!.alpha = (mAlpha * 255).toInt()
+            mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
+            return
+        }
+
+        val bitmap = Bitmap.createBitmap(cacheWidth, cacheHeight, Bitmap.Config.ARGB_8888)
+        val cacheCanvas = Canvas(bitmap)
+        cacheCanvas.translate(mCacheMargin.toFloat(), mCacheMargin.toFloat())
+        mTextOutlineLayout!!.draw(cacheCanvas)
+        mTextLayout!!.draw(cacheCanvas)
+        mCachedBitmap = bitmap
+    }
+
     companion object {
         private val FONT_SIZE_SCALE_FACTOR = 240
     }
@@ -0,0 +1,270 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTrack
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.os.Handler
+import android.util.Log
+import java.io.Closeable
+import java.io.IOException
+
+/**
+ *
+ * This media pipeline component plays a raw audio stream through an [AudioTrack] instead of
+ * encoding it. It is the end of a pipeline, like [PipedMediaMuxer].
+ *
+ * The presentation time of the sample currently being heard is available through [playbackTimeUs],
+ * which can be used to keep other output (e.g. video frames) in sync with the audio.  A marker
+ * can be set on a presentation time with [setMarker], and the source can be swapped for another
+ * with [replaceSource] without making a new track, e.g. to seek.
+ */
+class PipedAudioTrackSink : Closeable, PipedMediaByteBufferDest {
+
+    @Volatile
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mSource: PipedMediaByteBufferSource? = null
+    private var mTrack: AudioTrack? = null
+    private var mThread: Thread? = null
+
+    private var mSampleRate = 0
+    private var mChannelCount = 0
+
+    //Presentation time of the stream skipped before the track started playing.
+    private var mStartTimeUs: Long = 0
+    //Presentation time of the start of the source.
+    private var mSourceStartTimeUs: Long = 0
+
+    @Volatile
+    private var mPaused = false
+    @Volatile
+    private var mStopOutput = false
+    private var mVolume = 1.0f
+
+    @Volatile
+    var isDone = false
+        private set
+
+    @Throws(SourceUnacceptableException::class)
+    override fun addSource(src: PipedMediaByteBufferSource) {
+        if (mSource != null) {
+            throw SourceUnacceptableException("I already got a source")
+        }
+        mSource = src
+    }
+
+    /**
+     * Set up the source and start playing it on a separate thread.
+     */
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    fun start() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        val source = mSource ?: throw SourceUnacceptableException("No source provided!")
+        source.setup()
+        val format = source.outputFormat
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+
+        val channelConfig = if (mChannelCount == 1) AudioFormat.CHANNEL_OUT_MONO else AudioFormat.CHANNEL_OUT_STEREO
+        val bufferSize = AudioTrack.getMinBufferSize(mSampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT)
+        mTrack = AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2, AudioTrack.MODE_STREAM)
+        mTrack!!.setVolume(mVolume)
+
+        mComponentState = PipedMediaSource.State.RUNNING
+        startOutput()
+    }
+
+    /**
+     * Play another source with the same track, dropping whatever of the current source was not
+     * heard yet.  The track stays paused if it was.  Must be called after [start].
+     * @param src source with the same sample rate and channel count as the first one.
+     * @param sourceStartTimeUs presentation time of the start of the new source.
+     * @param startTimeUs presentation time from which to start playing; the part of the new
+     * source before it is skipped.
+     */
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    fun replaceSource(src: PipedMediaByteBufferSource, sourceStartTimeUs: Long, startTimeUs: Long) {
+        val track = mTrack ?: throw SourceUnacceptableException("Not started!")
+        //Two threads must never write to the track or read from a source at once.
+        if (!stopOutput()) throw IOException("The output thread did not stop")
+        track.flush()
+
+        mSource = src
+        src.setup()
+        val format = src.outputFormat
+        if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannelCount) {
+            throw SourceUnacceptableException("Source format does not match the track!")
+        }
+        mSourceStartTimeUs = sourceStartTimeUs
+        mStartTimeUs = startTimeUs
+        startOutput()
+    }
+
+    /**
+     * Call [listener] on the thread of [handler] once the audio at [timeUs] is heard.
+     * Replaces the previous marker.  Markers are cleared by [replaceSource].
+     */
+    fun setMarker(timeUs: Long, handler: Handler, listener: () -> Unit) {
+        val track = mTrack ?: return
+        val frame = ((timeUs - mStartTimeUs) * mSampleRate / 1000000.0).toLong()
+        track.setPlaybackPositionUpdateListener(object : AudioTrack.OnPlaybackPositionUpdateListener {
+            override fun onMarkerReached(t: AudioTrack) {
+                listener()
+            }
+
+            override fun onPeriodicNotification(t: AudioTrack) {}
+        }, handler)
+        //A marker at 0 is never reached.
+        track.notificationMarkerPosition = Math.max(1, Math.min(frame, Int.MAX_VALUE.toLong())).toInt()
+    }
+
+    fun setVolume(volume: Float) {
+        mVolume = volume
+        mTrack?.setVolume(volume)
+    }
+
+    private fun startOutput() {
+        mStopOutput = false
+        isDone = false
+        mThread = Thread(Runnable {
+            try {
+                spinOutput()
+            } catch (e: Exception) {
+                Log.w(TAG, "spinOutput stopped prematurely", e)
+            }
+            isDone = true
+        })
+        mThread!!.start()
+    }
+
+    /**
+     * Stop the output thread and close its source.
+     * @return whether the thread stopped.
+     */
+    private fun stopOutput(): Boolean {
+        mStopOutput = true
+        mTrack?.setPlaybackPositionUpdateListener(null)
+        //Pausing wakes up a write which is waiting for room in the track, and closing the source
+        //wakes up a read which is waiting on it.
+        mTrack?.pause()
+        mSource?.close()
+        val thread = mThread ?: return true
+        thread.interrupt()
+        try {
+            thread.join(THREAD_JOIN_TIMEOUT_MS)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while waiting for output thread", e)
+        }
+        if (thread.isAlive) return false
+        mThread = null
+        return true
+    }
+
+    /**
+     * Skip (without playing) the first part of the stream. Must be called before [start].
+     * @param timeUs presentation time, in microseconds, from which to start playing.
+     * @param sourceStartTimeUs presentation time of the start of the source.
+     */
+    @JvmOverloads
+    fun skipTo(timeUs: Long, sourceStartTimeUs: Long = 0) {
+        mStartTimeUs = timeUs
+        mSourceStartTimeUs = sourceStartTimeUs
+    }
+
+    /**
+     * @return presentation time, in microseconds, of the audio currently being heard.
+     */
+    val playbackTimeUs: Long
+        get() {
+            val track = mTrack ?: return 0
+            if (mSampleRate == 0) return 0
+            val played = track.playbackHeadPosition.toLong() and 0xFFFFFFFFL
+            return (played * 1000000.0 / mSampleRate).toLong() + mStartTimeUs
+        }
+
+    fun pause() {
+        mPaused = true
+        mTrack?.pause()
+    }
+
+    fun resume() {
+        mPaused = false
+        mTrack?.play()
+    }
+
+    @Throws(SourceClosedException::class)
+    private fun spinOutput() {
+        val source = mSource!!
+        val track = mTrack!!
+        val info = MediaCodec.BufferInfo()
+        val bytesPerSample = 2 * mChannelCount
+        var chunk = ByteArray(0)
+        var skipBytes = (mStartTimeUs - mSourceStartTimeUs) * mSampleRate / 1000000 * bytesPerSample
+
+        if (!mPaused && !mStopOutput) track.play()
+        while (mComponentState != PipedMediaSource.State.CLOSED && !mStopOutput && !source.isDone) {
+            val buffer = source.getBuffer(info) ?: break
+            buffer.position(info.offset)
+            buffer.limit(info.offset + info.size)
+
+            if (skipBytes > 0) {
+                val skip = Math.min(skipBytes, buffer.remaining().toLong()).toInt()
+                buffer.position(buffer.position() + skip)
+                skipBytes -= skip
+            }
+
+            val size = buffer.remaining()
+            if (chunk.size < size) chunk = ByteArray(size)
+            buffer.get(chunk, 0, size)
+            source.releaseBuffer(buffer)
+
+            //Blocks until the track has room, which paces the whole pipeline in real time.
+            var written = 0
+            while (written < size && mComponentState != PipedMediaSource.State.CLOSED && !mStopOutput) {
+                val result = track.write(chunk, written, size - written)
+                if (result < 0) throw IOException("AudioTrack write failed: $result")
+                if (result == 0) {
+                    //Paused with a full track; wait for it to play again.
+                    try {
+                        Thread.sleep(PAUSED_WRITE_RETRY_MS)
+                    } catch (e: InterruptedException) {
+                        return
+                    }
+                }
+                written += result
+            }
+        }
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        mSource?.close()
+        try {
+            mThread?.join(THREAD_JOIN_TIMEOUT_MS)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while waiting for output thread", e)
+        }
+        mTrack?.let {
+            try {
+                it.stop()
+            } catch (e: IllegalStateException) {
+                //Never started playing.
+            }
+            it.release()
+        }
+        mTrack = null
+    }
+
+    companion object {
+        private const val TAG = "PipedAudioTrackSink"
+        private const val THREAD_JOIN_TIMEOUT_MS: Long = 1000
+        private const val PAUSED_WRITE_RETRY_MS: Long = 20
+    }
+}
@@ -6,6 +6,8 @@ import android.media.MediaExtractor
 import android.media.MediaFormat
 import android.os.Build
 import android.util.Log
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.WorkspaceMirror
 import org.sil.storyproducer.tools.file.getStoryFileDescriptor
 
 import org.sil.storyproducer.tools.media.MediaHelper
@@ -43,7 +45,12 @@ class PipedMediaExtractor
         }
 
         mExtractor = MediaExtractor()
-        mExtractor!!.setDataSource(getStoryFileDescriptor(context, mPath,"","r")!!)
+        val mirrorFile = WorkspaceMirror.getStoryFile(context, mPath, Workspace.activeDirRoot)
+        if (mirrorFile != null) {
+            mExtractor!!.setDataSource(mirrorFile.path)
+        } else {
+            mExtractor!!.setDataSource(getStoryFileDescriptor(context, mPath,"","r")!!)
+        }
 
         var foundTrack = false
 
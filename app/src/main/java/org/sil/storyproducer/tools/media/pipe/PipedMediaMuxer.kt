@@ -3,12 +3,15 @@ package org.sil.storyproducer.tools.media.pipe
 import android.media.MediaCodec
 import android.media.MediaFormat
 import android.media.MediaMuxer
+import android.os.Build
 import android.util.Log
+import androidx.annotation.RequiresApi
 
 import org.sil.storyproducer.tools.media.MediaHelper
 
 import java.io.Closeable
 import java.io.File
+import java.io.FileDescriptor
 import java.io.IOException
 import java.nio.ByteBuffer
 
@@ -28,7 +31,9 @@ class PipedMediaMuxer
  * @param mFormat the format of the output media file
  * (from [android.media.MediaMuxer.OutputFormat]).
  */
-(private val mPath: String, private val mFormat: Int) : Closeable, PipedMediaByteBufferDest {
+(private val mPath: String?, private val mFormat: Int) : Closeable, PipedMediaByteBufferDest {
+
+    private var mFileDescriptor: FileDescriptor? = null
 
     private var mMuxer: MediaMuxer? = null
 
@@ -50,6 +55,23 @@ class PipedMediaMuxer
     @Volatile
     private var mAbnormallyEnded = false
 
+    /**
+     * Create a muxer which writes to an open file, e.g. a document in the workspace.
+     * @param fileDescriptor the output media file. It must be open for reading and writing, and seekable.
+     * @param format the format of the output media file
+     * (from [android.media.MediaMuxer.OutputFormat]).
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    constructor(fileDescriptor: FileDescriptor, format: Int) : this(null, format) {
+        mFileDescriptor = fileDescriptor
+    }
+
+    /**
+     * Receives progress updates each time the progress of a track increases.
+     * Called from the muxer's stream threads.
+     */
+    var progressListener: ProgressListener? = null
+
     /**
      * Get approximate current progress of the audio track (i.e. the latest timestamp in microseconds).
      * @return approximate microseconds of completed audio
@@ -152,13 +174,20 @@ class PipedMediaMuxer
 
     @Throws(IOException::class, SourceUnacceptableException::class)
     private fun start() {
-        val output = File(mPath)
-        //Ensure file exists to avoid bugs on some devices.
-        if (!output.exists()) {
-            output.createNewFile()
+        val fileDescriptor = mFileDescriptor
+        if (fileDescriptor == null) {
+            val output = File(mPath!!)
+            //Ensure file exists to avoid bugs on some devices.
+            if (!output.exists()) {
+                output.createNewFile()
+            }
         }
         synchronized(muxerLock) {
-            mMuxer = MediaMuxer(mPath, mFormat)
+            mMuxer = if (fileDescriptor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                MediaMuxer(fileDescriptor, mFormat)
+            } else {
+                MediaMuxer(mPath!!, mFormat)
+            }
             mComponentState = PipedMediaSource.State.RUNNING
 
             if (mAudioSource != null) {
@@ -189,6 +218,7 @@ class PipedMediaMuxer
     }
 
     private inner class StreamThread(private val mMuxer: MediaMuxer, private val mSource: PipedMediaByteBufferSource, private val mTrackIndex: Int, private val mBitrate: Int) : Thread() {
+        @Volatile
         var progress: Long = 0
             private set
 
@@ -208,6 +238,7 @@ class PipedMediaMuxer
                     if (info.presentationTimeUs > progress) {
                         //TODO: determine presentation time for end of this buffer if possible
                         progress = info.presentationTimeUs// + (info.size * 1000000L / 8 / mBitrate);
+                        progressListener?.onProgress(audioProgress, videoProgress)
                     }
 
                     synchronized(mMuxer) {
@@ -223,6 +254,17 @@ class PipedMediaMuxer
         }
     }
 
+    /**
+     * Describes a listener for the progress of the muxer's tracks.
+     */
+    interface ProgressListener {
+        /**
+         * @param audioProgressUs approximate microseconds of completed audio
+         * @param videoProgressUs approximate microseconds of completed video
+         */
+        fun onProgress(audioProgressUs: Long, videoProgressUs: Long)
+    }
+
     override fun close() {
         synchronized(muxerLock) {
             //Close sources.
@@ -5,7 +5,12 @@ import android.media.MediaCodecInfo
 import android.media.MediaFormat
 import android.media.MediaMuxer
 import android.net.Uri
+import android.os.Build
 import android.os.Bundle
+import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
 import android.util.Log
 import android.widget.Toast
 import com.arthenica.mobileffmpeg.Config
@@ -14,7 +19,11 @@ import com.google.firebase.crashlytics.FirebaseCrashlytics
 import org.sil.storyproducer.model.*
 import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
+import org.sil.storyproducer.tools.file.deleteWorkspaceFile
+import org.sil.storyproducer.tools.file.getPFD
 import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.getWorkspaceUri
+import org.sil.storyproducer.tools.file.renameWorkspaceDocument
 import org.sil.storyproducer.tools.media.MediaHelper
 import org.sil.storyproducer.tools.media.graphics.KenBurnsEffect
 import org.sil.storyproducer.viewmodel.SlideViewModelBuilder
@@ -37,6 +46,13 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     // bits per second for video
     private var videoTempFile: File = File(context.filesDir,"temp$VIDEO_MP4_EXT")
     private var video3gpFile: File = File(context.filesDir,"temp$VIDEO_3GP_EXT")
+    //The video is rendered under this name next to its final name, then renamed when done.
+    private val videoPartialRelPath: String get(){return "$VIDEO_DIR/${partialVideoName(videoRelPath)}"}
+    //Closed by the export thread once the muxer is done with it.
+    @Volatile
+    private var videoPartialPfd: ParcelFileDescriptor? = null
+    //Whether the video is rendered into the partial document, rather than to the local temp file.
+    private var renderedInPlace = false
 
     var mIncludeBackgroundMusic = true
     var mIncludePictures = true
@@ -47,15 +63,30 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     private var mLogProgress = false
 
     private var mStoryMaker: StoryMaker? = null
+    @Volatile
     private var time3GPms = 0
     private var allVideosDone = false
 
+    /**
+     * Receives progress of the whole export (main video, renditions and copying into the
+     * workspace) as it happens.
+     */
+    @Volatile
+    var progressListener: ExportProgressListener? = null
+
+    private var mStartNs: Long = 0
+    private var mLastRenditionProgressNs: Long = 0
+
     val isDone: Boolean
         get() = allVideosDone
 
     val isSuccess: Boolean
         get() = mStoryMaker != null && mStoryMaker!!.isSuccess
 
+    //Share of the overall progress taken by the main video. The rest is the 3gp rendition.
+    private val renderShare: Double
+        get() = if (mIncludePictures) 0.5 else 1.0
+
     val progress: Double
         get() {
             if (mStoryMaker == null) {
@@ -63,30 +94,58 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             } else {
                 if (!mStoryMaker!!.isDone) {
                     //Still making main video
-                    return mStoryMaker!!.progress / 2
+                    return mStoryMaker!!.progress * renderShare
                 }else {
                     //making 3gp video
-                    return 0.5 + time3GPms*1000.0/mStoryMaker!!.storyDuration / 2
+                    return renderShare + time3GPms*1000.0/mStoryMaker!!.storyDuration * (1 - renderShare)
                 }
             }
         }
 
     override fun start() {
+        mStartNs = System.nanoTime()
+        reportProgress(ExportProgress(ExportPhase.SETUP))
+
         val outputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
 
         val videoFormat = if(mIncludePictures) {generateVideoFormat()} else {null}
         val audioFormat = generateAudioFormat()
         val pages = generatePages() ?: return
 
-        videoTempFile.delete()  //just in case it's still there.
-        mStoryMaker = StoryMaker(context, videoTempFile, outputFormat, videoFormat, audioFormat,
-                pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
-
-        watchProgress()
+        videoPartialPfd = openPartialVideo()
+        val partialFd = videoPartialPfd?.fileDescriptor
+        renderedInPlace = partialFd != null
+        mStoryMaker = if (partialFd != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            StoryMaker(context, partialFd, outputFormat, videoFormat, audioFormat,
+                    pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
+        } else {
+            videoTempFile.delete()  //just in case it's still there.
+            StoryMaker(context, videoTempFile, outputFormat, videoFormat, audioFormat,
+                    pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
+        }
+        mStoryMaker!!.progressListener = object : ExportProgressListener {
+            override fun onExportProgress(progress: ExportProgress) {
+                val overall = progress.overallProgress * renderShare
+                reportProgress(ExportProgress(progress.phase, 0, progress.completedUs, progress.totalUs,
+                        progress.realTimeFactor, estimateRemainingMs(overall), overall))
+            }
+        }
+        //Leave one core for the encoder and audio pipeline.
+        mStoryMaker!!.renderThreadCount = Math.min(MAX_RENDER_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1).coerceAtLeast(0)
 
         super.start()
     }
 
+    /**
+     * Create a previewer for the story using the same pages and settings as the export.
+     * @return the previewer, or null if there are no pages.
+     */
+    fun createPreviewer(): StoryPreviewer? {
+        val pages = generatePages() ?: return null
+        return StoryPreviewer(context, pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
+    }
+
     override fun run() {
         var duration = -System.currentTimeMillis()
 
@@ -97,9 +156,22 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         Log.i(TAG, "Stopped making story after "
                 + MediaHelper.getDecimal(duration / 1000.toDouble()) + " seconds")
 
-        if (isSuccess) {
+        //Only now is the muxer done with the document.
+        closePartialVideo()
+        //Publishing may change the video's name, and with it the partial document's.
+        val partialRelPath = videoPartialRelPath
+        val isPublished = if (!isSuccess) {
+            false
+        } else if (renderedInPlace) {
+            publishPartialVideo()
+        } else {
             Log.v(TAG, "Moving completed video to " + videoRelPath)
-            copyToWorkspacePath(context,Uri.fromFile(videoTempFile),"$VIDEO_DIR/$videoRelPath")
+            reportProgress(ExportProgress(ExportPhase.COPY_OUT, overallProgress = renderShare))
+            copyToWorkspacePath(context, Uri.fromFile(videoTempFile), "$VIDEO_DIR/$videoRelPath")
+        }
+        if (renderedInPlace) deleteWorkspaceFile(context, partialRelPath)
+
+        if (isPublished) {
             Workspace.activeStory.addVideo(videoRelPath)
 
             val params = Bundle()
@@ -107,7 +179,7 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             Workspace.logEvent(context,"video_creation",params)
 
             //Make 3gp video before you delete the temp video - it's made from that.
-            if(mIncludePictures) make3GPVideo()
+            if(mIncludePictures) make3GPVideo(renderedInPlace)
 
             videoTempFile.delete()
 
@@ -116,25 +188,105 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             videoTempFile.delete()
         }
         allVideosDone = true
+        reportProgress(ExportProgress(ExportPhase.DONE, overallProgress = 1.0, etaMs = 0, isSuccess = isPublished))
+    }
+
+    /**
+     * Put the finished video from the partial document in place of any older video with the
+     * same name.  The older video is only deleted once the new one is safely in the folder.
+     * @return whether the video is in the workspace, as [videoRelPath].
+     */
+    private fun publishPartialVideo(): Boolean {
+        Log.v(TAG, "Renaming completed video to " + videoRelPath)
+        val name = renameWorkspaceDocument(context, videoPartialRelPath, videoRelPath)
+        if (name == videoRelPath) return true
+        if (name != null) {
+            //The provider gave it another name because the older video is there; now replace it.
+            val renamedRelPath = "$VIDEO_DIR/$name"
+            deleteWorkspaceFile(context, "$VIDEO_DIR/$videoRelPath")
+            val finalName = renameWorkspaceDocument(context, renamedRelPath, videoRelPath)
+            //Keep whatever name it ended up with rather than lose track of it.
+            videoRelPath = finalName ?: name
+            return true
+        }
+
+        //Some providers cannot rename documents; copy it over the older video instead.
+        Log.w(TAG, "Failed to rename completed video; copying it to " + videoRelPath)
+        reportProgress(ExportProgress(ExportPhase.COPY_OUT, overallProgress = renderShare))
+        val uri = getWorkspaceUri(videoPartialRelPath) ?: return false
+        if (copyToWorkspacePath(context, uri, "$VIDEO_DIR/$videoRelPath")) return true
+        Log.e(TAG, "Failed to copy completed video to " + videoRelPath)
+        return false
     }
 
-    private fun make3GPVideo() {
+    /**
+     * Open a document next to the final video to render straight into, so the finished video
+     * does not have to be copied into the workspace.
+     * @return the open document, or null if the video has to be rendered to a local file
+     * (before Android 8, or if the provider cannot give random access to the document).
+     */
+    private fun openPartialVideo(): ParcelFileDescriptor? {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return null
+        val pfd = getPFD(context, videoPartialRelPath, "video/mp4", "rw") ?: return null
+        return try {
+            //MediaMuxer seeks back to write the header; pipes and sockets cannot seek.
+            Os.lseek(pfd.fileDescriptor, 0, OsConstants.SEEK_SET)
+            //Clear anything left over from an export that did not finish.
+            Os.ftruncate(pfd.fileDescriptor, 0)
+            pfd
+        } catch (e: ErrnoException) {
+            Log.i(TAG, "Workspace document is not seekable; rendering to a local file instead")
+            pfd.close()
+            deleteWorkspaceFile(context, videoPartialRelPath)
+            null
+        }
+    }
+
+    private fun closePartialVideo() {
+        try {
+            videoPartialPfd?.close()
+        } catch (e: Exception) {
+            FirebaseCrashlytics.getInstance().recordException(e)
+        }
+        videoPartialPfd = null
+    }
+
+    /**
+     * @param fromWorkspace whether the main video was rendered straight into the workspace,
+     * rather than to the local temp file.
+     */
+    private fun make3GPVideo(fromWorkspace: Boolean) {
         Log.v(TAG, "Creating 3gp video" + video3gpPath)
         video3gpFile.delete()  //just in case it's still there.
 
+        var inputPfd: ParcelFileDescriptor? = null
         try{
+            val inputPath = if (fromWorkspace) {
+                //FFmpeg can read an open document through its file descriptor.
+                inputPfd = getPFD(context, "$VIDEO_DIR/$videoRelPath") ?: return
+                "/proc/self/fd/${inputPfd.fd}"
+            } else {
+                videoTempFile.absolutePath
+            }
 
             Config.resetStatistics()
-            Config.enableStatisticsCallback { newStatistics -> time3GPms = newStatistics.time }
-            FFmpeg.execute("-i ${videoTempFile.absolutePath} " +
+            val renditionStartNs = System.nanoTime()
+            Config.enableStatisticsCallback { newStatistics ->
+                time3GPms = newStatistics.time
+                reportRenditionProgress(renditionStartNs)
+            }
+            FFmpeg.execute("-i $inputPath " +
                     "-f 3gp -vcodec $VIDEO_3GP_CODEC -framerate $VIDEO_3GP_FRAMERATE -vf " +
                     "scale=${VIDEO_3GP_WIDTH}x$VIDEO_3GP_HEIGHT -acodec $VIDEO_3GP_AUDIO" +
                     " -b:v $VIDEO_3GP_BITRATE " + video3gpFile.absolutePath)
             Log.w(TAG,FFmpeg.getLastCommandOutput() ?: "No FFMPEG output")
+            reportProgress(ExportProgress(ExportPhase.COPY_OUT, overallProgress = 1.0, etaMs = 0))
             copyToWorkspacePath(context,Uri.fromFile(video3gpFile),"$VIDEO_DIR/$video3gpPath")
             Workspace.activeStory.addVideo(video3gpPath)
         } catch(e:Exception) {
             FirebaseCrashlytics.getInstance().recordException(e)
+        } finally {
+            inputPfd?.close()
         }
 
         video3gpFile.delete()
@@ -214,32 +366,46 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         return pages.toTypedArray()
     }
 
-    private fun watchProgress() {
-        val watcher = Thread(Runnable {
-            while (!mStoryMaker!!.isDone) {
-                val progress = mStoryMaker!!.progress
-                val audioProgress = mStoryMaker!!.audioProgress
-                val videoProgress = mStoryMaker!!.videoProgress
-                Log.i(TAG, "StoryMaker progress: " + MediaHelper.getDecimal(progress * 100) + "% "
-                        + "(audio " + MediaHelper.getDecimal(audioProgress * 100) + "% "
-                        + " and video " + MediaHelper.getDecimal(videoProgress * 100) + "%)")
-                try {
-                    Thread.sleep(1000)
-                } catch (e: InterruptedException) {
-                    e.printStackTrace()
-                }
-            }
-        })
+    private fun reportRenditionProgress(renditionStartNs: Long) {
+        val now = System.nanoTime()
+        //FFmpeg reports statistics very often; don't flood the listener.
+        if (now - mLastRenditionProgressNs < PROGRESS_INTERVAL_NS) return
+        mLastRenditionProgressNs = now
+
+        val totalUs = mStoryMaker!!.storyDuration
+        val completedUs = time3GPms * 1000L
+        val elapsedUs = (now - renditionStartNs) / 1000
+        val realTimeFactor = if (elapsedUs > 0) completedUs / elapsedUs.toDouble() else 0.0
+        val overall = progress
+        reportProgress(ExportProgress(ExportPhase.RENDITION, 1, completedUs, totalUs,
+                realTimeFactor, estimateRemainingMs(overall), overall))
+    }
 
+    /**
+     * Estimate the time left in the whole export from the time spent so far.
+     */
+    private fun estimateRemainingMs(overallProgress: Double): Long {
+        if (overallProgress <= 0) return -1
+        val elapsedMs = (System.nanoTime() - mStartNs) / 1000000
+        return (elapsedMs * (1 - overallProgress) / overallProgress).toLong()
+    }
+
+    private fun reportProgress(progress: ExportProgress) {
         if (mLogProgress) {
-            watcher.start()
+            Log.i(TAG, "Export ${progress.phase}: " + MediaHelper.getDecimal(progress.overallProgress * 100) + "% "
+                    + "(" + MediaHelper.getDecimal(progress.realTimeFactor) + "x real time, "
+                    + "ETA " + progress.etaMs / 1000 + " s)")
         }
+        progressListener?.onExportProgress(progress)
     }
 
     private fun error(message: String) {
         Toast.makeText(context, message, Toast.LENGTH_LONG).show()
     }
 
+    /**
+     * Stop making the video.  The export thread still finishes, closing and removing the partial video.
+     */
     override fun close() {
         if (mStoryMaker != null) {
             mStoryMaker!!.close()
@@ -249,9 +415,24 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     companion object {
         private val TAG = "AutoStoryMaker"
 
+        /**
+         * The hidden name a video is rendered under.  It keeps the video's extension, which
+         * matches the type it is created with, so that the provider does not add another one.
+         * e.g. "story.mp4" is rendered as ".story.part.mp4".
+         */
+        internal fun partialVideoName(videoName: String): String {
+            val extension = videoName.substringAfterLast('.', "")
+            return if (extension == "") ".$videoName$PARTIAL_SUFFIX"
+            else ".${videoName.substringBeforeLast('.')}$PARTIAL_SUFFIX.$extension"
+        }
+
         private val SLIDE_CROSS_FADE_US: Long = 750000
         private val AUDIO_TRANSITION_US: Long = 500000
+        private val MAX_RENDER_THREADS = 3
+        private val PROGRESS_INTERVAL_NS: Long = 100000000
+
 
+        private val PARTIAL_SUFFIX = ".part"
 
         private val VIDEO_MP4_EXT = ".mp4"
         private val VIDEO_MP4_CODEC = MediaFormat.MIMETYPE_VIDEO_AVC
@@ -0,0 +1,48 @@
+package org.sil.storyproducer.tools.media.story
+
+/**
+ * The phases of making a story video, in order.
+ */
+enum class ExportPhase {
+    /** Gathering pages and building the media pipeline. */
+    SETUP,
+    /** Rendering and encoding the main video. */
+    RENDER,
+    /** Converting the main video into another format (e.g. 3gp). See [ExportProgress.rendition]. */
+    RENDITION,
+    /** Moving a finished video into the workspace. */
+    COPY_OUT,
+    /** Finished, successfully or not. See [ExportProgress.isSuccess]. */
+    DONE
+}
+
+/**
+ * A snapshot of the progress of making a story video, pushed to a [ExportProgressListener].
+ *
+ * @param phase the current phase.
+ * @param rendition the number of the rendition being made in [ExportPhase.RENDITION] (starting at 1),
+ * or 0 in other phases.
+ * @param completedUs microseconds of media completed in the current phase.
+ * @param totalUs microseconds of media to complete in the current phase.
+ * @param realTimeFactor microseconds of media completed per microsecond of real time in the
+ * current phase, or 0 if not yet measured.
+ * @param etaMs estimated milliseconds until the whole export is done, or -1 if unknown.
+ * @param overallProgress progress of the whole export, between 0 and 1.
+ * @param isSuccess in [ExportPhase.DONE], whether the video was made.
+ */
+class ExportProgress(val phase: ExportPhase,
+                     val rendition: Int = 0,
+                     val completedUs: Long = 0,
+                     val totalUs: Long = 0,
+                     val realTimeFactor: Double = 0.0,
+                     val etaMs: Long = -1,
+                     val overallProgress: Double = 0.0,
+                     val isSuccess: Boolean = false)
+
+/**
+ * Receives progress of making a story video as it happens, instead of polling for it.
+ * Events are delivered on background threads.
+ */
+interface ExportProgressListener {
+    fun onExportProgress(progress: ExportProgress)
+}
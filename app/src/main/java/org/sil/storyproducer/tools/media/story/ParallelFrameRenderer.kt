@@ -0,0 +1,110 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
+import java.util.*
+import java.util.concurrent.*
+
+/**
+ * ParallelFrameRenderer renders the frames of a [StoryFrameDrawer] ahead of the encoder on a small
+ * pool of worker threads. Each frame is drawn into a pooled offscreen bitmap; the encoder thread
+ * only blits the finished bitmaps to its surface, in presentation order.
+ *
+ * This lets the Ken Burns scaling and filtering, which dominate the cost of a frame, use more than
+ * one core.
+ *
+ * @param mDrawer the drawer rendering each frame.  It is not closed with the renderer; whoever
+ * made it closes it.
+ * @param threadCount number of worker threads.
+ * @param mLookahead maximum number of frames rendered ahead of the encoder. This is also the
+ * maximum number of offscreen bitmaps allocated.
+ */
+internal class ParallelFrameRenderer(private val mDrawer: StoryFrameDrawer, threadCount: Int, private val mLookahead: Int) : PipedVideoSurfaceEncoder.Source {
+
+    private val mExecutor: ExecutorService = Executors.newFixedThreadPool(Math.max(1, threadCount))
+
+    //Offscreen frames which are free to be drawn into.
+    private val mFramePool = ArrayDeque<OffscreenFrame>()
+    //Frames being rendered, in presentation order.
+    private val mPending = ArrayDeque<Future<OffscreenFrame>>()
+
+    private var mNextToRender = 0
+    private var mNextToDraw = 0
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return mDrawer.getMediaType()
+    }
+
+    override fun getOutputFormat(): MediaFormat {
+        return mDrawer.getOutputFormat()
+    }
+
+    override fun isDone(): Boolean {
+        return mNextToDraw >= mDrawer.timeline.frameCount
+    }
+
+    override fun setup() {
+        mDrawer.setup()
+    }
+
+    override fun fillCanvas(canv: Canvas): Long {
+        //Keep the lookahead window full.
+        while (mNextToRender < mDrawer.timeline.frameCount && mNextToRender < mNextToDraw + Math.max(1, mLookahead)) {
+            render(mNextToRender++)
+        }
+
+        val frame = try {
+            mPending.poll()!!.get()
+        } catch (e: ExecutionException) {
+            throw RuntimeException("Failed to render frame $mNextToDraw", e.cause)
+        }
+
+        canv.drawBitmap(frame.bitmap, 0f, 0f, null)
+        mFramePool.add(frame)
+
+        mDrawer.releaseImages(mNextToDraw)
+        mNextToDraw++
+
+        return frame.presentationTimeUs
+    }
+
+    private fun render(frameIndex: Int) {
+        val frame = mFramePool.poll() ?: OffscreenFrame(
+                Bitmap.createBitmap(mDrawer.width, mDrawer.height, Bitmap.Config.ARGB_8888))
+
+        mPending.add(mExecutor.submit(Callable {
+            frame.bitmap.eraseColor(Color.BLACK)
+            frame.presentationTimeUs = mDrawer.drawFrame(frame.canvas, frameIndex)
+            frame
+        }))
+    }
+
+    override fun close() {
+        mExecutor.shutdownNow()
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.SECONDS)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while waiting for render threads", e)
+        }
+
+        mPending.clear()
+        for (frame in mFramePool) {
+            frame.bitmap.recycle()
+        }
+        mFramePool.clear()
+    }
+
+    private class OffscreenFrame(val bitmap: Bitmap) {
+        val canvas = Canvas(bitmap)
+        var presentationTimeUs: Long = 0
+    }
+
+    companion object {
+        private const val TAG = "ParallelFrameRenderer"
+    }
+}
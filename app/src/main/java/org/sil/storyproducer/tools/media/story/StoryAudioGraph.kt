@@ -0,0 +1,99 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import org.sil.storyproducer.tools.media.pipe.PipedAudioConcatenator
+import org.sil.storyproducer.tools.media.pipe.PipedAudioMixer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaByteBufferSource
+import org.sil.storyproducer.tools.media.pipe.SourceUnacceptableException
+import java.io.Closeable
+
+/**
+ * StoryAudioGraph builds the raw audio part of the media pipeline for a set of [StoryPage]s:
+ * the narration of each page, concatenated with transitions, mixed with the soundtracks.
+ *
+ * The same graph feeds the audio encoder of [StoryMaker] and the speaker in [StoryPreviewer].
+ *
+ * @param pages pages of this story.
+ * @param audioTransitionUs transition duration, in microseconds, between narration segments.
+ * @param sampleRate desired sample rate of the raw audio.
+ * @param channelCount desired channel count of the raw audio.
+ */
+internal class StoryAudioGraph(context: Context, private val pages: Array<StoryPage>, private val audioTransitionUs: Long,
+                               sampleRate: Int, channelCount: Int) : Closeable {
+
+    private val soundtrackConcatenator = PipedAudioConcatenator(context,0, sampleRate, channelCount)
+    private val narrationConcatenator = PipedAudioConcatenator(context, audioTransitionUs, sampleRate, channelCount)
+    private val audioMixer = PipedAudioMixer()
+
+    init {
+        soundtrackConcatenator.setFadeOut(SOUNDTRACK_FADE_OUT_US)
+    }
+
+    /**
+     * Add all pages to the graph.
+     * @return the last component of the graph, providing raw audio.
+     */
+    @Throws(SourceUnacceptableException::class)
+    fun build(): PipedMediaByteBufferSource {
+        var soundtrackDuration: Long = 0
+        var lastSoundtrack = ""
+        var soundtrackVolume: Float
+        var lastSoundtrackVolume = 0.0f
+        for (page in pages) {
+            val narration = page.narrationAudioPath
+            val audioDuration = page.audioDuration
+
+            val soundtrack = page.soundtrackAudioPath
+            val pageDuration = page.getDuration(audioTransitionUs)
+            soundtrackVolume = page.soundtrackVolume
+
+            //If we encounter a new soundtrack, stop the current one and start the new one.
+            //Otherwise, continue playing last soundtrack.
+            if (soundtrack != lastSoundtrack) {
+                //add the accumulated "last soundtrack" to the concatenator
+                if (lastSoundtrack != "") {
+                    soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+                } else if (soundtrackDuration > 0) {
+                    //Else, we need to add blank time.
+                    soundtrackConcatenator.addSource(null, soundtrackDuration, lastSoundtrackVolume)
+                }
+
+                //Start the next soundtrack accumulator
+                lastSoundtrack = soundtrack
+                lastSoundtrackVolume = soundtrackVolume
+                //The next soundtrack will at least play for "page duration"
+                soundtrackDuration = pageDuration
+            } else {
+                //each slide, add the narration length + transition time to the soundtrack audio.
+                soundtrackDuration += pageDuration
+            }
+
+            narrationConcatenator.addSourcePath(narration, audioDuration)
+        }
+
+        //Add last soundtrack
+        if (lastSoundtrack != "") {
+            soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+        }
+
+        //Add soundtrack only if there is one!
+        return if(soundtrackConcatenator.anyNonNull()) {
+            audioMixer.addSource(narrationConcatenator)
+            audioMixer.addSource(soundtrackConcatenator)
+            audioMixer
+        } else {
+            //no mixing needed - bypass.
+            narrationConcatenator
+        }
+    }
+
+    override fun close() {
+        soundtrackConcatenator.close()
+        narrationConcatenator.close()
+        audioMixer.close()
+    }
+
+    companion object {
+        private val SOUNDTRACK_FADE_OUT_US: Long = 1000000
+    }
+}
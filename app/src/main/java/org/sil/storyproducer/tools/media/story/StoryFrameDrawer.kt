@@ -4,79 +4,63 @@ import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
+import android.graphics.RectF
 import android.media.MediaFormat
-import android.util.Log
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.BitmapCache
 import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.BitmapScaler
 import org.sil.storyproducer.tools.file.getDownsample
 import org.sil.storyproducer.tools.media.MediaHelper
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * This class knows how to draw the frames provided to it by [StoryMaker].
  */
 internal class StoryFrameDrawer(private val context: Context, private val mVideoFormat: MediaFormat, private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, slideCrossFadeUs: Long) : PipedVideoSurfaceEncoder.Source {
-    private val xTime: Long //transition (cross fade) time
-
     private val mFrameRate: Int
 
     private val mWidth: Int
     private val mHeight: Int
 
-    private val mBitmapPaint: Paint
-
-    private var slideIndex = -1 //starts at -1 to allow initial transition
-    private var slideAudioStart: Long = 0
-    private var slideAudioEnd: Long = 0
-    private var nSlideAudioEnd: Long = 0
-    private val slideVisStart: Long
-        get() {return if(slideIndex<=0){slideAudioStart} else {slideAudioStart-xTime/2}}
-    private val slideXStart: Long  //beginning of the next transition
-        get() {return if(slideIndex>=mPages.size-1){slideAudioEnd} else {slideAudioEnd-xTime/2}}
-    private val slideXEnd: Long  //end of the next transition
-        get() {return if(slideIndex>=mPages.size-1){slideAudioEnd} else {slideAudioEnd+xTime/2}}
-    private val nSlideXEnd: Long  //end of the next transition
-        get() {return if(slideIndex>=mPages.size-2){nSlideAudioEnd} else {nSlideAudioEnd+xTime/2}}
-    private val slideVisDur: Long // the visible duration of the slide
-        get() {return slideXEnd - slideVisStart}
-    private val nSlideVisDur: Long // the visible duration of the next slide
-        get() {return nSlideXEnd - slideXStart}
+    //Drawing state is kept per thread so that frames may be rendered in parallel.
+    private val mBitmapPaint = object : ThreadLocal<Paint>() {
+        override fun initialValue(): Paint {
+            val paint = Paint()
+            paint.isAntiAlias = true
+            paint.isFilterBitmap = true
+            paint.isDither = true
+            return paint
+        }
+    }
+    private val mDrawRect = object : ThreadLocal<RectF>() {
+        override fun initialValue(): RectF = RectF()
+    }
 
-    private var mCurrentFrame = 0
+    /** Slide boundaries, alphas and Ken Burns positions for every frame, compiled up front. */
+    val timeline: StoryTimeline
 
-    private var mIsVideoDone = false
+    private var mCurrentFrame = 0
 
-    private var bitmaps: MutableMap<String,Bitmap?> = mutableMapOf()
-    private var downsamples: MutableMap<String,Int> = mutableMapOf()
+    private val images = ConcurrentHashMap<String, SlideImage>()
+    private var mClosed = false
 
     init {
-
-        var correctedSlideTransitionUs = slideCrossFadeUs
-
-        //mSlideTransition must never exceed the length of slides in terms of audio.
-        //Pre-process pages and clip the slide transition time to fit in all cases.
-        for (page in mPages) {
-            val totalPageUs = page.audioDuration + mAudioTransitionUs
-            if (correctedSlideTransitionUs > totalPageUs) {
-                correctedSlideTransitionUs = totalPageUs
-                Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
-            }
-        }
-
-        xTime = correctedSlideTransitionUs
-
         mFrameRate = mVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
 
         mWidth = mVideoFormat.getInteger(MediaFormat.KEY_WIDTH)
         mHeight = mVideoFormat.getInteger(MediaFormat.KEY_HEIGHT)
 
-        mBitmapPaint = Paint()
-        mBitmapPaint.isAntiAlias = true
-        mBitmapPaint.isFilterBitmap = true
-        mBitmapPaint.isDither = true
+        timeline = StoryTimeline(mPages, mAudioTransitionUs, slideCrossFadeUs, mFrameRate)
     }
 
+    val width: Int
+        get() = mWidth
+
+    val height: Int
+        get() = mHeight
+
     override fun getMediaType(): MediaHelper.MediaType {
         return MediaHelper.MediaType.VIDEO
     }
@@ -86,69 +70,54 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
     }
 
     override fun isDone(): Boolean {
-        return mIsVideoDone
+        return mCurrentFrame >= timeline.frameCount
     }
 
     override fun setup() {}
 
     override fun fillCanvas(canv: Canvas): Long {
-
-        //[-|-page-1-|-| ]
-        //           [ |-|-page-2-|-| ]
-        //                        [ |-|-page-last-|-]
-        // | | | (two bars) = transition time (xtime)
-        // | | (one bar) = 1/2 xtime
-        // --- (dash) sound playing from slide
-        // Exclusive time + xtime/2 for first and last slide
-        // "current page" is the page until it ends
-        // "Next page" is growing in intensity for "xtime"
-        // Visible time
-
         //Each time this is called, go forward 1/30 of a second.
-        val cTime = MediaHelper.getTimeFromIndex(mFrameRate.toLong(), mCurrentFrame)
-
-        if(cTime > slideXEnd){
-            //go to the next slide
-            slideIndex++
-
-            if (slideIndex >= mPages.size) {
-                mIsVideoDone = true
-            } else {
-                slideAudioStart = slideAudioEnd
-                slideAudioEnd += mPages[slideIndex].getDuration(mAudioTransitionUs)
+        val cTime = drawFrame(canv, mCurrentFrame)
 
-                if (slideIndex + 1 < mPages.size) {
-                    nSlideAudioEnd = slideAudioEnd + mPages[slideIndex + 1].getDuration(mAudioTransitionUs)
-                }
-            }
-        }
+        releaseImages(mCurrentFrame)
 
-        drawFrame(canv, slideIndex, cTime - slideVisStart, slideVisDur,
-                1f)
+        mCurrentFrame++
 
-        if (cTime >= slideXStart) {
-            var alpha = (cTime - slideXStart) / xTime.toFloat()
-            if(cTime < xTime.toFloat()/2)
-                alpha = 1.0f
-            drawFrame(canv, slideIndex + 1, cTime - slideXStart, nSlideVisDur,
-                    alpha)
-        }
+        return cTime
+    }
 
-        //clear image cache to save memory.
+    /**
+     * Clear images which are no longer needed once the given frame has been drawn, to save memory.
+     * Frames must be released in order.
+     */
+    fun releaseImages(frame: Int) {
+        val slideIndex = timeline.baseSlide(frame)
         if(slideIndex >= 1 && slideIndex < mPages.size) {
-            if (bitmaps.containsKey(mPages[slideIndex - 1].imRelPath) &&
-                    mPages[slideIndex - 1].imRelPath != mPages[slideIndex].imRelPath) {
-                bitmaps.remove(mPages[slideIndex - 1].imRelPath)
+            if (mPages[slideIndex - 1].imRelPath != mPages[slideIndex].imRelPath) {
+                images.remove(mPages[slideIndex - 1].imRelPath)?.bitmap?.also { BitmapCache.release(it) }
             }
         }
+    }
 
-        mCurrentFrame++
+    /**
+     * Draw an arbitrary frame of the story. Frames may be drawn in any order and from multiple
+     * threads at once.
+     * @param canv the canvas to be drawn upon.
+     * @param frame index of the frame, between 0 and [StoryTimeline.frameCount] (exclusive).
+     * @return the presentation time (in microseconds) of the drawn frame.
+     */
+    fun drawFrame(canv: Canvas, frame: Int): Long {
+        drawPage(canv, timeline.baseSlide(frame), timeline.basePosition(frame), 1f)
+
+        val fadeSlide = timeline.fadeSlide(frame)
+        if (fadeSlide != StoryTimeline.NO_SLIDE) {
+            drawPage(canv, fadeSlide, timeline.fadePosition(frame), timeline.fadeAlpha(frame))
+        }
 
-        return cTime
+        return timeline.frameTimeUs(frame)
     }
 
-    private fun drawFrame(canv: Canvas, pageIndex: Int, timeOffsetUs: Long, imgDurationUs: Long,
-                          alpha: Float) {
+    private fun drawPage(canv: Canvas, pageIndex: Int, position: Float, alpha: Float) {
         //In edge cases, draw a black frame with alpha value.
         if (pageIndex < 0 || pageIndex >= mPages.size) {
             canv.drawARGB((alpha * 255).toInt(), 0, 0, 0)
@@ -156,44 +125,57 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         }
 
         val page = mPages[pageIndex]
-        if(!bitmaps.containsKey(page.imRelPath)){
-            val ds = getDownsample(context,page.imRelPath,mWidth*2, mHeight*2)
-            downsamples[page.imRelPath] = ds
-            bitmaps[page.imRelPath] = SlideService(context).getImage(page.imRelPath, ds, true, Workspace.activeStory)
-        }
-        val bitmap = bitmaps[page.imRelPath]
-        val downSample = downsamples[page.imRelPath]!!
+        val image = getSlideImage(page.imRelPath)
+        val bitmap = image.bitmap
 
         if (bitmap != null) {
-            val position = (timeOffsetUs / imgDurationUs.toDouble()).toFloat()
-
             //If ken burns, then interpolate
             val drawRect = page.kenBurnsEffect?.
-                    revInterpolate(position,mWidth,mHeight,bitmap.width,bitmap.height,downSample*1f) ?:
+                    revInterpolate(position,mWidth,mHeight,bitmap.width,bitmap.height,image.downSample*1f,mDrawRect.get()!!) ?:
                 //else, fit to crop the height and width to show everything.
-                BitmapScaler.centerCropRectF(
-                        bitmap.height, bitmap.width, mHeight, mWidth)
+                image.cropRect
 
-            mBitmapPaint.alpha = (alpha * 255).toInt()
+            val paint = mBitmapPaint.get()!!
+            paint.alpha = (alpha * 255).toInt()
 
-            canv.drawBitmap(bitmap, null, drawRect, mBitmapPaint)
+            canv.drawBitmap(bitmap, null, drawRect, paint)
         } else {
             //If there is no picture, draw black background for text overlay.
             canv.drawARGB((alpha * 255).toInt(), 0, 0, 0)
         }
 
         val tOverlay = page.textOverlay
-        if (tOverlay != null) {
-            tOverlay.setAlpha(alpha)
-            tOverlay.draw(canv)
+        tOverlay?.draw(canv, alpha)
+    }
+
+    private fun getSlideImage(imRelPath: String): SlideImage {
+        //Only one thread decodes; threads drawing already loaded slides are not held up.
+        return images[imRelPath] ?: synchronized(images) {
+            images[imRelPath] ?: loadSlideImage(imRelPath).also { images[imRelPath] = it }
         }
     }
 
-    override fun close() {
-        bitmaps.clear()
+    private fun loadSlideImage(imRelPath: String): SlideImage {
+        val ds = getDownsample(context,imRelPath,mWidth*2, mHeight*2)
+        val bitmap = SlideService(context).getImage(imRelPath, ds, true, Workspace.activeStory)
+        return SlideImage(bitmap, ds, BitmapScaler.centerCropRectF(bitmap.height, bitmap.width, mHeight, mWidth))
     }
 
-    companion object {
-        private val TAG = "StoryFrameDrawer"
+    /**
+     * Release the images and overlays.  The video encoder closes its source when it is done, so
+     * this may be called again by the owner of the drawer; only the first call does anything.
+     */
+    @Synchronized
+    override fun close() {
+        if (mClosed) return
+        mClosed = true
+        images.values.forEach { image -> image.bitmap?.also { BitmapCache.release(it) } }
+        images.clear()
+        BitmapCache.logStats()
+        for (page in mPages) {
+            page.textOverlay?.recycle()
+        }
     }
+
+    private class SlideImage(val bitmap: Bitmap?, val downSample: Int, val cropRect: RectF)
 }
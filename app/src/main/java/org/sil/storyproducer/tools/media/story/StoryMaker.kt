@@ -2,16 +2,17 @@ package org.sil.storyproducer.tools.media.story
 
 import android.content.Context
 import android.media.MediaFormat
+import android.os.Build
 import android.util.Log
+import androidx.annotation.RequiresApi
 
-import org.sil.storyproducer.tools.media.pipe.PipedAudioConcatenator
-import org.sil.storyproducer.tools.media.pipe.PipedAudioMixer
 import org.sil.storyproducer.tools.media.pipe.PipedMediaEncoder
 import org.sil.storyproducer.tools.media.pipe.PipedMediaMuxer
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
 
 import java.io.Closeable
 import java.io.File
+import java.io.FileDescriptor
 
 /**
  * StoryMaker handles all the brunt work of constructing a media pipeline for a given set of StoryPages.
@@ -29,9 +30,11 @@ class StoryMaker
  * Note: this helps drive length of video.
  * @param mSlideCrossFadeUs cross-fade duration, in microseconds, between page images.
  */
-(private val context: Context, private val mOutputFile: File, private val mOutputFormat: Int, private val mVideoFormat: MediaFormat?, private val mAudioFormat: MediaFormat,
+(private val context: Context, private val mOutputFile: File?, private val mOutputFormat: Int, private val mVideoFormat: MediaFormat?, private val mAudioFormat: MediaFormat,
  private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, private val mSlideCrossFadeUs: Long) : Closeable {
 
+    private var mOutputFileDescriptor: FileDescriptor? = null
+
     private val mSampleRate: Int
     private val mChannelCount: Int
 
@@ -44,6 +47,26 @@ class StoryMaker
     var isSuccess = false
         private set
 
+    /**
+     * Number of worker threads rendering video frames ahead of the encoder.
+     * If 0, frames are drawn directly on the encoder's input thread.
+     */
+    var renderThreadCount = 0
+
+    /**
+     * Maximum number of video frames rendered ahead of the encoder when [renderThreadCount] > 0.
+     */
+    var renderLookahead = DEFAULT_RENDER_LOOKAHEAD
+
+    /**
+     * Receives [ExportPhase.SETUP] and [ExportPhase.RENDER] progress as the story is made.
+     */
+    @Volatile
+    var progressListener: ExportProgressListener? = null
+
+    private var mRenderStartNs: Long = 0
+    private var mLastProgressNs: Long = 0
+
     val progress: Double
         get() {
             if (isDone) {
@@ -85,6 +108,18 @@ class StoryMaker
         storyDuration = getStoryDuration(mPages, mAudioTransitionUs)
     }
 
+    /**
+     * Create StoryMaker which writes the video to an open file, e.g. a document in the workspace,
+     * instead of a local file.
+     * @param outputFileDescriptor output video file. It must be open for reading and writing, and seekable.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    constructor(context: Context, outputFileDescriptor: FileDescriptor, outputFormat: Int, videoFormat: MediaFormat?,
+                audioFormat: MediaFormat, pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long)
+            : this(context, null, outputFormat, videoFormat, audioFormat, pages, audioTransitionUs, slideCrossFadeUs) {
+        mOutputFileDescriptor = outputFileDescriptor
+    }
+
     /**
      * Set StoryMaker in motion. It is advisable to run this method from a separate thread.
      * @return whether the video creation process finished.
@@ -94,89 +129,54 @@ class StoryMaker
             Log.e(TAG, "StoryMaker already finished!")
         }
 
-        val soundtrackConcatenator = PipedAudioConcatenator(context,0, mSampleRate, mChannelCount)
-        soundtrackConcatenator.setFadeOut(SOUNDTRACK_FADE_OUT_US)
-        val narrationConcatenator = PipedAudioConcatenator(context, mAudioTransitionUs, mSampleRate, mChannelCount)
-        val audioMixer = PipedAudioMixer()
+        progressListener?.onExportProgress(ExportProgress(ExportPhase.SETUP, totalUs = storyDuration))
+
+        val audioGraph = StoryAudioGraph(context, mPages, mAudioTransitionUs, mSampleRate, mChannelCount)
         val audioEncoder = PipedMediaEncoder(mAudioFormat)
         var videoDrawer: StoryFrameDrawer? = null
         var videoEncoder: PipedVideoSurfaceEncoder? = null
+        var videoRenderer: ParallelFrameRenderer? = null
         if (mVideoFormat != null) {
             videoDrawer = StoryFrameDrawer(context, mVideoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs)
             videoEncoder = PipedVideoSurfaceEncoder()
+            if (renderThreadCount > 0) {
+                videoRenderer = ParallelFrameRenderer(videoDrawer, renderThreadCount, renderLookahead)
+            }
+        }
+        val outputFileDescriptor = mOutputFileDescriptor
+        mMuxer = if (outputFileDescriptor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            PipedMediaMuxer(outputFileDescriptor, mOutputFormat)
+        } else {
+            PipedMediaMuxer(mOutputFile!!.absolutePath, mOutputFormat)
+        }
+        mMuxer!!.progressListener = object : PipedMediaMuxer.ProgressListener {
+            override fun onProgress(audioProgressUs: Long, videoProgressUs: Long) {
+                reportRenderProgress(Math.min(audioProgressUs, videoProgressUs))
+            }
         }
-        mMuxer = PipedMediaMuxer(mOutputFile.absolutePath, mOutputFormat)
 
         try {
             mMuxer!!.addSource(audioEncoder)
 
-            var soundtrackDuration: Long = 0
-            var lastSoundtrack = ""
-            var soundtrackVolume: Float
-            var lastSoundtrackVolume = 0.0f
-            for (page in mPages) {
-                val narration = page.narrationAudioPath
-                val audioDuration = page.audioDuration
-
-                val soundtrack = page.soundtrackAudioPath
-                val pageDuration = page.getDuration(mAudioTransitionUs)
-                soundtrackVolume = page.soundtrackVolume
-
-                //If we encounter a new soundtrack, stop the current one and start the new one.
-                //Otherwise, continue playing last soundtrack.
-                if (soundtrack != lastSoundtrack) {
-                    //add the accumulated "last soundtrack" to the concatenator
-                    if (lastSoundtrack != "") {
-                        soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
-                    } else if (soundtrackDuration > 0) {
-                        //Else, we need to add blank time.
-                        soundtrackConcatenator.addSource(null, soundtrackDuration, lastSoundtrackVolume)
-                    }
-
-                    //Start the next soundtrack accumulator
-                    lastSoundtrack = soundtrack
-                    lastSoundtrackVolume = soundtrackVolume
-                    //The next soundtrack will at least play for "page duration"
-                    soundtrackDuration = pageDuration
-                } else {
-                    //each slide, add the narration length + transition time to the soundtrack audio.
-                    soundtrackDuration += pageDuration
-                }
-
-                narrationConcatenator.addSourcePath(narration, audioDuration)
-            }
-
-            //Add last soundtrack
-            if (lastSoundtrack != "") {
-                soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
-            }
-
-            //Add soundtrack only if there is one!
-            if(soundtrackConcatenator.anyNonNull()) {
-                audioEncoder.addSource(audioMixer)
-                audioMixer.addSource(narrationConcatenator)
-                audioMixer.addSource(soundtrackConcatenator)
-            } else {
-                //no mixing needed - bypass.
-                audioEncoder.addSource(narrationConcatenator)
-            }
+            audioEncoder.addSource(audioGraph.build())
 
             if (mVideoFormat != null) {
                 mMuxer!!.addSource(videoEncoder!!)
 
-                videoEncoder.addSource(videoDrawer!!)
+                videoEncoder.addSource(videoRenderer ?: videoDrawer!!)
             }
+            mRenderStartNs = System.nanoTime()
+            mLastProgressNs = 0
             isSuccess = mMuxer!!.crunch()
-            Log.i(TAG, "Video saved to $mOutputFile")
+            Log.i(TAG, "Video saved to ${mOutputFile ?: "file descriptor"}")
         } catch (e: Exception) {
             Log.e(TAG, "Error in story making", e)
         } finally {
             //Everything should be closed automatically, but close everything just in case.
-            soundtrackConcatenator.close()
-            narrationConcatenator.close()
-            audioMixer.close()
+            audioGraph.close()
             audioEncoder.close()
             if (mVideoFormat != null) {
+                videoRenderer?.close()
                 videoDrawer!!.close()
                 videoEncoder!!.close()
             }
@@ -188,6 +188,21 @@ class StoryMaker
         return isSuccess
     }
 
+    @Synchronized
+    private fun reportRenderProgress(completedUs: Long) {
+        val listener = progressListener ?: return
+        val now = System.nanoTime()
+        //Don't flood the listener; the muxer reports every buffer.
+        if (now - mLastProgressNs < PROGRESS_INTERVAL_NS) return
+        mLastProgressNs = now
+
+        val elapsedUs = (now - mRenderStartNs) / 1000
+        val realTimeFactor = if (elapsedUs > 0) completedUs / elapsedUs.toDouble() else 0.0
+        val etaMs = if (realTimeFactor > 0) ((storyDuration - completedUs) / realTimeFactor / 1000).toLong() else -1
+        listener.onExportProgress(ExportProgress(ExportPhase.RENDER, 0, completedUs, storyDuration,
+                realTimeFactor, etaMs, if (storyDuration > 0) completedUs / storyDuration.toDouble() else 0.0))
+    }
+
     override fun close() {
         if (mMuxer != null) {
             Log.i(TAG, "Closing media pipeline. Subsequent logged errors may not be cause for concern.")
@@ -198,7 +213,8 @@ class StoryMaker
 
     companion object {
         private val TAG = "StoryMaker"
-        private val SOUNDTRACK_FADE_OUT_US: Long = 1000000
+        private val DEFAULT_RENDER_LOOKAHEAD = 6
+        private val PROGRESS_INTERVAL_NS: Long = 100000000
 
         /**
          * Get the expected duration, in microseconds, of the produced video.
@@ -0,0 +1,187 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import org.sil.storyproducer.tools.media.pipe.PipedAudioConcatenator
+import org.sil.storyproducer.tools.media.pipe.PipedAudioTrackSink
+import java.io.Closeable
+
+/**
+ * StoryNarrationPlayer plays the narration of a story's slides one after the other, without gaps,
+ * through a single [PipedAudioTrackSink].
+ *
+ * The narrations are decoded and joined by a [PipedAudioConcatenator] which holds each one to its
+ * given duration, so every slide starts exactly at the sum of the durations before it.  A marker
+ * on the track at that sample tells [onSlideChanged] when the next slide is heard.  Seeking, by
+ * slide or by time, decodes again from the slide which holds the new time into the same track.
+ *
+ * All calls, and all callbacks, are on the main thread.
+ *
+ * @param narrationPaths story relative path of each slide's narration, or null for silence.
+ * @param durationsUs duration of each slide, in microseconds.
+ */
+class StoryNarrationPlayer(private val context: Context, private val narrationPaths: List<String?>,
+                           private val durationsUs: List<Long>) : Closeable {
+
+    /**
+     * Presentation time, in microseconds, at which each slide starts.
+     */
+    val slideStartTimesUs: List<Long>
+
+    /**
+     * Duration of the whole narration, in microseconds.
+     */
+    val durationUs: Long
+
+    var onSlideChanged: ((Int) -> Unit)? = null
+    var onCompletion: (() -> Unit)? = null
+
+    private val mHandler = Handler(Looper.getMainLooper())
+    private var mSink: PipedAudioTrackSink? = null
+    private var mVolume = 1.0f
+
+    var isPlaying = false
+        private set
+
+    /**
+     * The slide being heard.
+     */
+    var currentSlide = 0
+        private set
+
+    /**
+     * Whether the narration was played to the end.
+     */
+    var isAtEnd = false
+        private set
+
+    init {
+        val starts = mutableListOf<Long>()
+        var time: Long = 0
+        for (duration in durationsUs) {
+            starts.add(time)
+            time += duration
+        }
+        slideStartTimesUs = starts
+        durationUs = time
+    }
+
+    /**
+     * Presentation time, in microseconds, of the audio being heard.
+     */
+    val currentTimeUs: Long
+        get() {
+            val sink = mSink ?: return slideStartTimesUs.getOrElse(currentSlide) { 0 }
+            return Math.min(sink.playbackTimeUs, durationUs)
+        }
+
+    fun play() {
+        if (narrationPaths.isEmpty()) return
+        if (mSink == null || isAtEnd) seekToSlide(if (isAtEnd) 0 else currentSlide)
+        isPlaying = true
+        mSink?.resume()
+    }
+
+    fun pause() {
+        isPlaying = false
+        mSink?.pause()
+    }
+
+    fun seekToSlide(slideNum: Int) {
+        seekTo(slideStartTimesUs.getOrElse(slideNum) { 0 })
+    }
+
+    /**
+     * Continue playing, or stay paused, from the given time.
+     * @param timeUs presentation time, in microseconds.
+     */
+    fun seekTo(timeUs: Long) {
+        if (narrationPaths.isEmpty()) return
+        val time = timeUs.coerceIn(0, durationUs)
+        val slide = slideAt(time)
+        val source = PipedAudioConcatenator(context, 0, SAMPLE_RATE, CHANNEL_COUNT)
+        try {
+            for (i in slide until narrationPaths.size) {
+                source.addSourcePath(narrationPaths[i], durationsUs[i])
+            }
+            val sink = mSink
+            if (sink == null) {
+                val newSink = PipedAudioTrackSink()
+                newSink.setVolume(mVolume)
+                newSink.addSource(source)
+                newSink.skipTo(time, slideStartTimesUs[slide])
+                if (!isPlaying) newSink.pause()
+                newSink.start()
+                mSink = newSink
+            } else {
+                sink.replaceSource(source, slideStartTimesUs[slide], time)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to seek to $time", e)
+            source.close()
+            return
+        }
+
+        isAtEnd = false
+        setMarker(slide)
+        if (slide != currentSlide) {
+            currentSlide = slide
+            onSlideChanged?.invoke(slide)
+        }
+    }
+
+    fun setVolume(volume: Float) {
+        mVolume = volume
+        mSink?.setVolume(volume)
+    }
+
+    /**
+     * The last slide starting at or before the time, which passes over slides without narration.
+     */
+    fun slideAt(timeUs: Long): Int {
+        var slide = 0
+        for (i in slideStartTimesUs.indices) {
+            if (slideStartTimesUs[i] <= timeUs) slide = i
+        }
+        return slide
+    }
+
+    private fun setMarker(slide: Int) {
+        val sink = mSink ?: return
+        val next = slide + 1
+        if (next < slideStartTimesUs.size) {
+            val nextStartUs = slideStartTimesUs[next]
+            sink.setMarker(nextStartUs, mHandler) {
+                //Closed since.
+                if (mSink !== sink) return@setMarker
+                val nextSlide = slideAt(nextStartUs)
+                currentSlide = nextSlide
+                setMarker(nextSlide)
+                onSlideChanged?.invoke(nextSlide)
+            }
+        } else {
+            sink.setMarker(durationUs, mHandler) {
+                if (mSink !== sink) return@setMarker
+                isAtEnd = true
+                pause()
+                onCompletion?.invoke()
+            }
+        }
+    }
+
+    override fun close() {
+        isPlaying = false
+        val sink = mSink
+        mSink = null
+        sink?.close()
+    }
+
+    companion object {
+        private const val TAG = "StoryNarrationPlayer"
+
+        private const val SAMPLE_RATE = 44100
+        private const val CHANNEL_COUNT = 1
+    }
+}
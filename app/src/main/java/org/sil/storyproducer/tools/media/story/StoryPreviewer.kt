@@ -0,0 +1,186 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.media.MediaCodecInfo
+import android.media.MediaFormat
+import android.util.Log
+import android.view.Surface
+import org.sil.storyproducer.tools.media.pipe.PipedAudioTrackSink
+import java.io.Closeable
+import java.nio.channels.ClosedByInterruptException
+
+/**
+ * StoryPreviewer plays a range of slides the way the finished video will look and sound, without
+ * running a full export. It reuses [StoryFrameDrawer] and [StoryAudioGraph], but renders at a
+ * reduced resolution and frame rate straight to an on-screen [Surface], and plays the audio
+ * through the speaker instead of encoding it.
+ *
+ * Note: a soundtrack which began before the first previewed slide starts from its beginning.
+ *
+ * @param mPages pages of the whole story.
+ * @param mAudioTransitionUs transition duration, in microseconds, between narration segments.
+ * @param mSlideCrossFadeUs cross-fade duration, in microseconds, between page images.
+ */
+class StoryPreviewer(private val context: Context, private val mPages: Array<StoryPage>,
+                     private val mAudioTransitionUs: Long, private val mSlideCrossFadeUs: Long) : Closeable {
+
+    var width = PREVIEW_WIDTH
+    var height = PREVIEW_HEIGHT
+    var frameRate = PREVIEW_FRAMERATE
+
+    val slideCount: Int
+        get() = mPages.size
+
+    //The thread of the current preview. A thread which is no longer current stops by itself.
+    @Volatile
+    private var mThread: Thread? = null
+    //Held while a frame is put on the surface, so that stop() can wait for it.
+    private val mSurfaceLock = Any()
+
+    val isPlaying: Boolean
+        get() = mThread?.isAlive ?: false
+
+    /**
+     * Start playing the given slides on a separate thread. Any current preview is stopped first.
+     * @param surface the on-screen surface to draw to.
+     * @param firstSlide index of the first slide to preview.
+     * @param lastSlide index of the last slide to preview (inclusive).
+     */
+    fun start(surface: Surface, firstSlide: Int = 0, lastSlide: Int = mPages.size - 1) {
+        stop()
+
+        val pages = mPages.copyOfRange(firstSlide, lastSlide + 1)
+        val thread = Thread(Runnable {
+            try {
+                play(surface, pages)
+            } catch (e: InterruptedException) {
+                //Stopped.
+            } catch (e: ClosedByInterruptException) {
+                //Stopped while reading a file.
+            } catch (e: Exception) {
+                Log.e(TAG, "Error in story preview", e)
+            }
+        })
+        mThread = thread
+        thread.start()
+    }
+
+    /**
+     * Stop the current preview, if any. This is called from the UI thread, so it only waits a
+     * short time for the preview to finish. Once it returns, the preview no longer draws to its
+     * surface, even if it is still decoding a frame.
+     */
+    fun stop() {
+        val thread = mThread ?: return
+        mThread = null
+        thread.interrupt()
+        try {
+            thread.join(STOP_TIMEOUT_MS)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while stopping preview", e)
+        }
+        //Wait for a frame which is being put on the surface. The thread draws no more after it.
+        synchronized(mSurfaceLock) {}
+    }
+
+    private fun isCurrent() = mThread === Thread.currentThread()
+
+    private fun play(surface: Surface, pages: Array<StoryPage>) {
+        val drawer = StoryFrameDrawer(context, generateVideoFormat(), pages, mAudioTransitionUs, mSlideCrossFadeUs)
+        val timeline = drawer.timeline
+        val audioGraph = StoryAudioGraph(context, pages, mAudioTransitionUs, PREVIEW_SAMPLE_RATE, PREVIEW_CHANNEL_COUNT)
+        val audioSink = PipedAudioTrackSink()
+
+        val frameBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val frameCanvas = Canvas(frameBitmap)
+        val blitPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+        val dstRect = Rect()
+        val frameDurationUs = 1000000L / frameRate
+
+        try {
+            audioSink.addSource(audioGraph.build())
+            audioSink.start()
+            val wallStartUs = System.nanoTime() / 1000
+
+            var frame = 0
+            while (isCurrent() && frame < timeline.frameCount) {
+                val frameTimeUs = timeline.frameTimeUs(frame)
+
+                //Follow the audio while it plays; follow the wall clock after it runs out.
+                var clockUs = getClockUs(audioSink, wallStartUs)
+                if (clockUs > frameTimeUs + frameDurationUs) {
+                    //Too late for this frame; drop it to keep up with the audio.
+                    drawer.releaseImages(frame++)
+                    continue
+                }
+                while (isCurrent() && clockUs < frameTimeUs) {
+                    Thread.sleep(Math.max(1, (frameTimeUs - clockUs) / 1000))
+                    clockUs = getClockUs(audioSink, wallStartUs)
+                }
+
+                frameBitmap.eraseColor(Color.BLACK)
+                drawer.drawFrame(frameCanvas, frame)
+
+                synchronized(mSurfaceLock) {
+                    if (isCurrent()) {
+                        val canvas = surface.lockCanvas(null)
+                        dstRect.set(0, 0, canvas.width, canvas.height)
+                        canvas.drawBitmap(frameBitmap, null, dstRect, blitPaint)
+                        surface.unlockCanvasAndPost(canvas)
+                    }
+                }
+
+                drawer.releaseImages(frame++)
+            }
+        } finally {
+            audioSink.close()
+            audioGraph.close()
+            drawer.close()
+            frameBitmap.recycle()
+        }
+    }
+
+    private fun getClockUs(audioSink: PipedAudioTrackSink, wallStartUs: Long): Long {
+        return if (audioSink.isDone) {
+            Math.max(audioSink.playbackTimeUs, System.nanoTime() / 1000 - wallStartUs)
+        } else {
+            audioSink.playbackTimeUs
+        }
+    }
+
+    private fun generateVideoFormat(): MediaFormat {
+        val videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height)
+
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate)
+        videoFormat.setInteger(MediaFormat.KEY_CAPTURE_RATE, frameRate)
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, PREVIEW_BITRATE)
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, PREVIEW_IFRAME_INTERVAL)
+
+        return videoFormat
+    }
+
+    override fun close() {
+        stop()
+    }
+
+    companion object {
+        private const val TAG = "StoryPreviewer"
+
+        private const val PREVIEW_WIDTH = 384
+        private const val PREVIEW_HEIGHT = 288
+        private const val PREVIEW_FRAMERATE = 15
+        private const val PREVIEW_BITRATE = 1000000
+        private const val PREVIEW_IFRAME_INTERVAL = 8
+
+        private const val STOP_TIMEOUT_MS: Long = 200
+
+        private const val PREVIEW_SAMPLE_RATE = 22050
+        private const val PREVIEW_CHANNEL_COUNT = 1
+    }
+}
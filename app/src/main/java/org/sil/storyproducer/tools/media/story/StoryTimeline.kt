@@ -0,0 +1,191 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.util.Log
+
+/**
+ * StoryTimeline compiles an array of [StoryPage]s into compact primitive tables up front, so that
+ * rendering a frame is a table lookup rather than a walk through slide boundaries.
+ *
+ * For every frame the timeline stores the slide drawn underneath (at full opacity), the slide
+ * cross-fading in on top of it (if any) with its alpha, and each slide's position (0 to 1) through
+ * its visible duration, which drives the Ken Burns effect. Frames can be looked up in any order,
+ * which allows random-access rendering for previews.
+ *
+ * Slide index -1 (before the first slide) and [slideCount] (after the last slide) are drawn black.
+ *
+ * @param pages pages of this story.
+ * @param audioTransitionUs transition duration, in microseconds, between narration segments.
+ * @param slideCrossFadeUs desired cross-fade duration, in microseconds, between page images.
+ * @param frameRate frames per second of the video.
+ */
+internal class StoryTimeline(pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long, val frameRate: Int) {
+
+    val slideCount: Int = pages.size
+
+    /** The cross-fade duration, clipped so that it never exceeds the length of any slide. */
+    val crossFadeUs: Long
+
+    //slide boundaries, in microseconds. Slide i has audio from audioStartUs[i] to audioStartUs[i+1].
+    private val audioStartUs = LongArray(slideCount + 1)
+    //visible window of each slide, including the cross-fades on either end.
+    private val visStartUs = LongArray(slideCount)
+    private val visEndUs = LongArray(slideCount)
+
+    val frameCount: Int
+
+    private val frameTimeUs: LongArray
+    private val baseSlide: IntArray
+    private val basePosition: FloatArray
+    private val fadeSlide: IntArray
+    private val fadePosition: FloatArray
+    private val fadeAlpha: FloatArray
+
+    init {
+        var correctedSlideTransitionUs = slideCrossFadeUs
+
+        //The slide transition must never exceed the length of slides in terms of audio.
+        //Pre-process pages and clip the slide transition time to fit in all cases.
+        for (page in pages) {
+            val totalPageUs = page.audioDuration + audioTransitionUs
+            if (correctedSlideTransitionUs > totalPageUs) {
+                correctedSlideTransitionUs = totalPageUs
+                Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
+            }
+        }
+        crossFadeUs = correctedSlideTransitionUs
+        val halfX = crossFadeUs / 2
+
+        for (i in 0 until slideCount) {
+            audioStartUs[i + 1] = audioStartUs[i] + pages[i].getDuration(audioTransitionUs)
+        }
+        for (i in 0 until slideCount) {
+            visStartUs[i] = if (i == 0) 0 else audioStartUs[i] - halfX
+            visEndUs[i] = if (i == slideCount - 1) audioStartUs[i + 1] else audioStartUs[i + 1] + halfX
+        }
+
+        //The video runs until the end of the last slide, plus one closing black frame.
+        val endUs = if (slideCount > 0) visEndUs[slideCount - 1] else halfX
+        var frames = 0
+        while (timeOfFrame(frames) <= endUs) frames++
+        frameCount = frames + 1
+
+        frameTimeUs = LongArray(frameCount)
+        baseSlide = IntArray(frameCount)
+        basePosition = FloatArray(frameCount)
+        fadeSlide = IntArray(frameCount)
+        fadePosition = FloatArray(frameCount)
+        fadeAlpha = FloatArray(frameCount)
+
+        //[-|-page-1-|-| ]
+        //           [ |-|-page-2-|-| ]
+        //                        [ |-|-page-last-|-]
+        // | | | (two bars) = transition time (xtime)
+        // | | (one bar) = 1/2 xtime
+        // --- (dash) sound playing from slide
+        // Exclusive time + xtime/2 for first and last slide
+        // "current page" is the page until it ends
+        // "Next page" is growing in intensity for "xtime"
+        var slide = -1
+        for (frame in 0 until frameCount) {
+            val time = timeOfFrame(frame)
+            frameTimeUs[frame] = time
+
+            //The first half transition fades in from black; after that, advance past finished slides.
+            while (slide < slideCount && time > visibleEndUs(slide, halfX)) {
+                slide++
+            }
+
+            baseSlide[frame] = slide
+            basePosition[frame] = positionIn(slide, time)
+
+            val next = slide + 1
+            val fadeStart = if (slide < 0) -halfX else slideFadeStartUs(slide)
+            if (slide < slideCount && next < slideCount && time >= fadeStart) {
+                fadeSlide[frame] = next
+                fadePosition[frame] = positionIn(next, time)
+                //Fading in from black at the beginning of the story is instant.
+                fadeAlpha[frame] = if (slide < 0 || crossFadeUs <= 0) 1f else
+                    Math.min(1f, (time - fadeStart) / crossFadeUs.toFloat())
+            } else {
+                fadeSlide[frame] = NO_SLIDE
+            }
+        }
+    }
+
+    private fun timeOfFrame(frame: Int): Long {
+        return (frame * 1000000.0 / frameRate).toLong()
+    }
+
+    private fun visibleEndUs(slide: Int, halfX: Long): Long {
+        return if (slide < 0) halfX else visEndUs[slide]
+    }
+
+    /** The beginning of the transition out of the slide. */
+    private fun slideFadeStartUs(slide: Int): Long {
+        return if (slide >= slideCount - 1) audioStartUs[slide + 1] else audioStartUs[slide + 1] - crossFadeUs / 2
+    }
+
+    private fun positionIn(slide: Int, time: Long): Float {
+        if (slide < 0 || slide >= slideCount) return 0f
+        val duration = visEndUs[slide] - visStartUs[slide]
+        if (duration <= 0) return 0f
+        return ((time - visStartUs[slide]) / duration.toDouble()).toFloat()
+    }
+
+    /** Presentation time of the frame, in microseconds. */
+    fun frameTimeUs(frame: Int): Long = frameTimeUs[frame]
+
+    /** The slide drawn at full opacity underneath any cross-fade. */
+    fun baseSlide(frame: Int): Int = baseSlide[frame]
+
+    /** Position (0 to 1) of the frame through the visible duration of [baseSlide]. */
+    fun basePosition(frame: Int): Float = basePosition[frame]
+
+    /** The slide cross-fading in on top of [baseSlide], or [NO_SLIDE] if there is none. */
+    fun fadeSlide(frame: Int): Int = fadeSlide[frame]
+
+    /** Position (0 to 1) of the frame through the visible duration of [fadeSlide]. */
+    fun fadePosition(frame: Int): Float = fadePosition[frame]
+
+    /** Alpha (0 to 1) of [fadeSlide]. */
+    fun fadeAlpha(frame: Int): Float = fadeAlpha[frame]
+
+    /**
+     * Get the first frame at or after the given time.
+     * @param timeUs time in microseconds.
+     */
+    fun frameAtTime(timeUs: Long): Int {
+        var index = java.util.Arrays.binarySearch(frameTimeUs, timeUs)
+        if (index < 0) index = -index - 1
+        return Math.min(index, frameCount - 1)
+    }
+
+    /** The first frame on which the slide is visible. */
+    fun firstFrameOf(slide: Int): Int = frameAtTime(visStartUs[slide])
+
+    /** Start of the slide's audio (including half of the audio transition), in microseconds. */
+    fun slideStartUs(slide: Int): Long = audioStartUs[slide]
+
+    /** End of the slide's audio (including half of the audio transition), in microseconds. */
+    fun slideEndUs(slide: Int): Long = audioStartUs[slide + 1]
+
+    /**
+     * Get the sample-exact start of the slide's audio.
+     * @param slide index of the slide, or [slideCount] for the end of the story.
+     * @param sampleRate audio sample rate, in Hz.
+     * @return the index of the first sample (per channel) belonging to the slide.
+     */
+    fun slideStartSample(slide: Int, sampleRate: Int): Long {
+        return audioStartUs[slide] * sampleRate / 1000000
+    }
+
+    /** Total duration of the story audio, in microseconds. */
+    val durationUs: Long
+        get() = audioStartUs[slideCount]
+
+    companion object {
+        private const val TAG = "StoryTimeline"
+
+        const val NO_SLIDE = Int.MIN_VALUE
+    }
+}
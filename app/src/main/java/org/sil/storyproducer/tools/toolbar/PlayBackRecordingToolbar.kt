@@ -144,8 +144,8 @@ open class PlayBackRecordingToolbar: RecordingToolbar() {
                     
                     //TODO: make this logging more robust and encapsulated
                     when (Workspace.activePhase.phaseType){
-                        PhaseType.DRAFT -> saveLog(appContext.getString(R.string.DRAFT_PLAYBACK))
-                        PhaseType.COMMUNITY_CHECK-> saveLog(appContext.getString(R.string.COMMENT_PLAYBACK))
+                        PhaseType.DRAFT -> saveLog(appContext, appContext.getString(R.string.DRAFT_PLAYBACK))
+                        PhaseType.COMMUNITY_CHECK-> saveLog(appContext, appContext.getString(R.string.COMMENT_PLAYBACK))
                         else ->{}
                     }
                 } else {
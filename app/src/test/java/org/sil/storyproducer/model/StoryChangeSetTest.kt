@@ -0,0 +1,44 @@
+package org.sil.storyproducer.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class StoryChangeSetTest {
+
+    private val known = listOf("A", "B", "C").map { it to StoryHeader(it) }.toMap()
+
+    @Test
+    fun testBetween_SortsBuiltHeadersIntoAddedAndChanged() {
+        val changes = StoryChangeSet.between(known, listOf(StoryHeader("B"), StoryHeader("D")),
+                setOf("A", "B", "C", "D"), true)
+
+        assertEquals(listOf("D"), changes.added.map { it.title })
+        assertEquals(listOf("B"), changes.changed.map { it.title })
+        assertTrue(changes.removed.isEmpty())
+    }
+
+    @Test
+    fun testBetween_RemovesStoriesWhichWereNotFound() {
+        val changes = StoryChangeSet.between(known, listOf(), setOf("A", "C"), true)
+
+        assertEquals(listOf("B"), changes.removed)
+        assertTrue(changes.added.isEmpty())
+        assertTrue(changes.changed.isEmpty())
+    }
+
+    @Test
+    fun testBetween_RemovesNothingWhenScanIsIncomplete() {
+        //A cancelled scan did not look at every story, so the missing ones may still be there.
+        val changes = StoryChangeSet.between(known, listOf(StoryHeader("D")), setOf("A", "D"), false)
+
+        assertEquals(listOf("D"), changes.added.map { it.title })
+        assertTrue(changes.removed.isEmpty())
+    }
+
+    @Test
+    fun testBetween_IsEmptyWhenNothingChanged() {
+        assertTrue(StoryChangeSet.between(known, listOf(), known.keys, true).isEmpty())
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.sil.storyproducer.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.sil.storyproducer.tools.file.WorkspaceDocument
+
+class StoryHeaderTest {
+
+    private fun projectFile(size: Long, lastModified: Long): WorkspaceDocument {
+        return WorkspaceDocument("story/project/story.json", "story.json", "id", "application/json", size, lastModified)
+    }
+
+    private fun directory(lastModified: Long): WorkspaceDocument {
+        return WorkspaceDocument("story", "story", "id", "vnd.android.document/directory", 0, lastModified)
+    }
+
+    private fun header(size: Long, lastModified: Long): StoryHeader {
+        return StoryHeader("story").apply {
+            projectFileSize = size
+            projectFileLastModified = lastModified
+        }
+    }
+
+    @Test
+    fun testIsCurrent_WhenSizeAndTimeMatch() {
+        assertTrue(header(100, 5000).isCurrent(projectFile(100, 5000)))
+    }
+
+    @Test
+    fun testIsNotCurrent_WhenProjectFileChanged() {
+        assertFalse(header(100, 5000).isCurrent(projectFile(101, 5000)))
+        assertFalse(header(100, 5000).isCurrent(projectFile(100, 6000)))
+    }
+
+    @Test
+    fun testIsNotCurrent_WhenProjectFileIsMissing() {
+        assertFalse(header(100, 5000).isCurrent(null))
+    }
+
+    @Test
+    fun testIsNotCurrent_WhenHeaderWasMadeWithoutProjectFile() {
+        //A header made before the project file was written has no size; it must be read again.
+        assertFalse(header(-1, -1).isCurrent(projectFile(-1, -1)))
+    }
+
+    @Test
+    fun testIsCurrentDirectory_WhenTimeMatches() {
+        val header = header(100, 5000).apply { directoryLastModified = 7000 }
+        assertTrue(header.isCurrentDirectory(directory(7000)))
+        assertFalse(header.isCurrentDirectory(directory(8000)))
+    }
+
+    @Test
+    fun testIsNotCurrentDirectory_WhenTimeIsUnknown() {
+        //Some providers report no time for folders, so every folder would look unchanged.
+        assertFalse(header(100, 5000).isCurrentDirectory(directory(-1)))
+        assertFalse(header(100, 5000).apply { directoryLastModified = 0 }.isCurrentDirectory(directory(0)))
+    }
+
+    @Test
+    fun testWithDirectory_CopiesHeader() {
+        val header = header(100, 5000).apply {
+            subtitle = "subtitle"
+            thumbnailFile = "1.jpg"
+            slideCount = 12
+            lastPhaseType = PhaseType.DRAFT
+            directoryLastModified = 7000
+        }
+
+        val copy = header.withDirectory(directory(8000))
+
+        assertEquals(7000L, header.directoryLastModified)
+        assertEquals(8000L, copy.directoryLastModified)
+        assertEquals("story", copy.title)
+        assertEquals("subtitle", copy.subtitle)
+        assertEquals("1.jpg", copy.thumbnailFile)
+        assertEquals(12, copy.slideCount)
+        assertEquals(PhaseType.DRAFT, copy.lastPhaseType)
+        assertTrue(copy.isCurrent(projectFile(100, 5000)))
+    }
+
+}
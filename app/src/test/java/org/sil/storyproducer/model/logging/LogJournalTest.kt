@@ -0,0 +1,86 @@
+package org.sil.storyproducer.model.logging
+
+import com.squareup.moshi.Moshi
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.sil.storyproducer.model.Phase
+import org.sil.storyproducer.model.PhaseType
+import java.io.ByteArrayInputStream
+
+class LogJournalTest {
+
+    private val adapter = Moshi.Builder().build().adapter(LogEntry::class.java)
+
+    private fun entry(description: String, slideNum: Int = 1): LogEntry {
+        return LogEntry("Mon Jan 06 2020 9:00 AM", description, Phase(PhaseType.DRAFT), slideNum, slideNum)
+    }
+
+    //Every entry starts with a line break, as the journal writes them.
+    private fun journal(vararg lines: String): ByteArrayInputStream {
+        return ByteArrayInputStream(lines.joinToString("") { "\n$it" }.toByteArray())
+    }
+
+    private fun journal(entries: List<LogEntry>): ByteArrayInputStream {
+        return journal(*entries.map { adapter.toJson(it) }.toTypedArray())
+    }
+
+    @Test
+    fun testRead_PagesThroughJournal() {
+        val entries = (1..5).map { entry("Entry $it") }
+
+        val first = LogJournal.read(journal(entries), 0, 2) { true }.page
+        assertEquals(listOf("Entry 1", "Entry 2"), first.entries.map { it.description })
+        assertFalse(first.isLast)
+
+        val second = LogJournal.read(journal(entries), first.nextOffset, 2) { true }.page
+        assertEquals(listOf("Entry 3", "Entry 4"), second.entries.map { it.description })
+        assertFalse(second.isLast)
+
+        val last = LogJournal.read(journal(entries), second.nextOffset, 2) { true }.page
+        assertEquals(listOf("Entry 5"), last.entries.map { it.description })
+        assertTrue(last.isLast)
+    }
+
+    @Test
+    fun testRead_CountsOnlyFilteredEntries() {
+        val entries = (1..6).map { entry("Entry $it", it) }
+
+        val page = LogJournal.read(journal(entries), 0, 2) { it.startSlideNum % 2 == 0 }.page
+
+        assertEquals(listOf("Entry 2", "Entry 4"), page.entries.map { it.description })
+        assertFalse(page.isLast)
+    }
+
+    @Test
+    fun testRead_SkipsDamagedLines() {
+        val whole = adapter.toJson(entry("Cut off"))
+        val scan = LogJournal.read(journal(
+                adapter.toJson(entry("Before")),
+                whole.substring(0, whole.length / 2),
+                adapter.toJson(entry("After"))), 0, 10) { true }
+
+        assertEquals(listOf("Before", "After"), scan.page.entries.map { it.description })
+        assertTrue(scan.page.isLast)
+        assertTrue(scan.isDamaged)
+    }
+
+    @Test
+    fun testRead_WholeJournalIsNotDamaged() {
+        val scan = LogJournal.read(journal(listOf(entry("Only"))), 0, 10) { true }
+
+        assertEquals(1, scan.page.entries.size)
+        assertFalse(scan.isDamaged)
+    }
+
+    @Test
+    fun testRead_EmptyJournal() {
+        val scan = LogJournal.read(ByteArrayInputStream(ByteArray(0)), 0, 10) { true }
+
+        assertTrue(scan.page.entries.isEmpty())
+        assertTrue(scan.page.isLast)
+        assertEquals(0L, scan.page.nextOffset)
+    }
+
+}
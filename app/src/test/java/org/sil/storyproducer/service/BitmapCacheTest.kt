@@ -0,0 +1,98 @@
+package org.sil.storyproducer.service
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class BitmapCacheTest {
+
+    private var decodeCount = 0
+
+    private fun decode(size: Int): (BitmapFactory.Options) -> Bitmap? = {
+        decodeCount++
+        Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)
+    }
+
+    //The pooled bitmap the cache would give to a decode of an image of this size.
+    private fun reusableFor(size: Int): Bitmap? {
+        val options = BitmapFactory.Options()
+        options.outWidth = size
+        options.outHeight = size
+        options.inSampleSize = 1
+        BitmapCache.setReusableBitmap(options)
+        return options.inBitmap
+    }
+
+    @Before
+    fun before() {
+        BitmapCache.clear()
+        //Room for one large image, or four small ones; the pool holds one small one.
+        BitmapCache.maxBytes = LARGE * LARGE * 4
+        decodeCount = 0
+    }
+
+    @Test
+    fun testGet_DecodesOnce() {
+        val first = BitmapCache.get("a", decode(SMALL))
+        val second = BitmapCache.get("a", decode(SMALL))
+
+        assertSame(first, second)
+        assertEquals(1, decodeCount)
+    }
+
+    @Test
+    fun testRelease_KeepsCachedBitmapOutOfPool() {
+        val bitmap = BitmapCache.get("a", decode(SMALL))!!
+        BitmapCache.release(bitmap)
+
+        //Still cached, so it may be handed out again and must not be decoded into.
+        assertNull(reusableFor(SMALL - 10))
+    }
+
+    @Test
+    fun testEvictedBitmap_IsPooledOnceReleased() {
+        val small = BitmapCache.get("a", decode(SMALL))!!
+        //Evicts the small image, which is still drawn.
+        BitmapCache.get("b", decode(LARGE))
+
+        assertNull(reusableFor(SMALL - 10))
+        BitmapCache.release(small)
+        assertSame(small, reusableFor(SMALL - 10))
+        //Taken from the pool.
+        assertNull(reusableFor(SMALL - 10))
+    }
+
+    @Test
+    fun testEvictedBitmap_IsPooledOnlyWhenEveryUserReleasedIt() {
+        val small = BitmapCache.get("a", decode(SMALL))!!
+        BitmapCache.get("a", decode(SMALL))
+        BitmapCache.get("b", decode(LARGE))
+
+        BitmapCache.release(small)
+        assertNull(reusableFor(SMALL - 10))
+        BitmapCache.release(small)
+        assertSame(small, reusableFor(SMALL - 10))
+    }
+
+    @Test
+    fun testPool_GivesNoBitmapWhichIsTooSmall() {
+        val small = BitmapCache.get("a", decode(SMALL))!!
+        BitmapCache.get("b", decode(LARGE))
+        BitmapCache.release(small)
+
+        assertNull(reusableFor(SMALL))
+        assertSame(small, reusableFor(SMALL - 10))
+    }
+
+    companion object {
+        private const val SMALL = 100
+        private const val LARGE = 200
+    }
+}
@@ -0,0 +1,53 @@
+package org.sil.storyproducer.tools.file
+
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+class FileCopierTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val data = ByteArray(1000) { it.toByte() }
+
+    private fun source(): File = folder.newFile().apply { writeBytes(data) }
+
+    @Test
+    fun testCopy_Files() {
+        val dest = folder.newFile()
+        val copied = FileCopier.copy(FileInputStream(source()), FileOutputStream(dest))
+
+        Assert.assertEquals(data.size.toLong(), copied)
+        Assert.assertArrayEquals(data, dest.readBytes())
+    }
+
+    @Test
+    fun testCopy_ShortInputIsReported() {
+        val dest = folder.newFile()
+        val length = data.size + 500L
+
+        Assert.assertEquals(data.size.toLong(), FileCopier.copy(FileInputStream(source()), FileOutputStream(dest), length))
+        Assert.assertEquals(data.size.toLong(), FileCopier.copy(ByteArrayInputStream(data), FileOutputStream(dest), length))
+    }
+
+    @Test
+    fun testCopy_Length() {
+        val dest = folder.newFile()
+        val copied = FileCopier.copy(FileInputStream(source()), FileOutputStream(dest), 300)
+
+        Assert.assertEquals(300L, copied)
+        Assert.assertArrayEquals(data.copyOf(300), dest.readBytes())
+    }
+
+    @Test
+    fun testIsWhole() {
+        Assert.assertTrue(FileCopier.isWhole(1000, 1000))
+        Assert.assertTrue(FileCopier.isWhole(1000, -1))
+    }
+}
@@ -0,0 +1,56 @@
+package org.sil.storyproducer.tools.file
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+
+class ImageHeadersTest {
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    private fun readSize(vararg values: Int) = ImageHeaders.readSize(ByteArrayInputStream(bytes(*values)))
+
+    @Test
+    fun testPngSize() {
+        val size = readSize(
+                0x89, 'P'.toInt(), 'N'.toInt(), 'G'.toInt(), 0x0D, 0x0A, 0x1A, 0x0A,
+                0x00, 0x00, 0x00, 0x0D, 'I'.toInt(), 'H'.toInt(), 'D'.toInt(), 'R'.toInt(),
+                0x00, 0x00, 0x02, 0x80,     //width 640
+                0x00, 0x00, 0x01, 0xE0)     //height 480
+        Assert.assertEquals(ImageSize(640, 480), size)
+    }
+
+    @Test
+    fun testJpegSizeAfterOtherSegments() {
+        val size = readSize(
+                0xFF, 0xD8,
+                //APP0, with 3 bytes of data
+                0xFF, 0xE0, 0x00, 0x05, 0x01, 0x02, 0x03,
+                //DHT, which is not a start of frame
+                0xFF, 0xC4, 0x00, 0x03, 0x00,
+                //a fill byte, then SOF2
+                0xFF, 0xFF, 0xC2, 0x00, 0x11, 0x08,
+                0x03, 0x20,     //height 800
+                0x04, 0xB0)     //width 1200
+        Assert.assertEquals(ImageSize(1200, 800), size)
+    }
+
+    @Test
+    fun testLosslessWebpSize() {
+        val size = readSize(
+                'R'.toInt(), 'I'.toInt(), 'F'.toInt(), 'F'.toInt(), 0x20, 0x00, 0x00, 0x00,
+                'W'.toInt(), 'E'.toInt(), 'B'.toInt(), 'P'.toInt(),
+                'V'.toInt(), 'P'.toInt(), '8'.toInt(), 'L'.toInt(), 0x10, 0x00, 0x00, 0x00,
+                0x2F,
+                //width 100 and height 50, each less one, in 14 bits
+                0x63, 0x40, 0x0C, 0x00)
+        Assert.assertEquals(ImageSize(100, 50), size)
+    }
+
+    @Test
+    fun testTruncatedOrUnknownHeader() {
+        Assert.assertNull(readSize(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10))
+        Assert.assertNull(readSize('G'.toInt(), 'I'.toInt(), 'F'.toInt()))
+        Assert.assertNull(readSize())
+    }
+}
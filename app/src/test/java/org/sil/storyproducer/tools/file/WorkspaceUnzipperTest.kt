@@ -0,0 +1,35 @@
+package org.sil.storyproducer.tools.file
+
+import org.junit.Assert
+import org.junit.Test
+
+class WorkspaceUnzipperTest {
+
+    private fun entryRelPath(entryName: String) = WorkspaceUnzipper.entryRelPath("story", entryName)
+
+    @Test
+    fun testEntriesInsideDestination() {
+        Assert.assertEquals("story/index.htm", entryRelPath("index.htm"))
+        Assert.assertEquals("story/audio/1.mp3", entryRelPath("audio/1.mp3"))
+        Assert.assertEquals("story/images", entryRelPath("images/"))
+        //Written on Windows, or with a leading slash.
+        Assert.assertEquals("story/audio/1.mp3", entryRelPath("audio\\1.mp3"))
+        Assert.assertEquals("story/audio/1.mp3", entryRelPath("/audio/1.mp3"))
+        //Dots which are only part of a name are fine.
+        Assert.assertEquals("story/..book.htm", entryRelPath("..book.htm"))
+    }
+
+    @Test
+    fun testEntriesOutsideDestinationAreSkipped() {
+        Assert.assertNull(entryRelPath("../other story/project/story.json"))
+        Assert.assertNull(entryRelPath("audio/../../other.mp3"))
+        Assert.assertNull(entryRelPath("..\\other.mp3"))
+        Assert.assertNull(entryRelPath(".."))
+    }
+
+    @Test
+    fun testEmptyEntriesAreSkipped() {
+        Assert.assertNull(entryRelPath(""))
+        Assert.assertNull(entryRelPath("/"))
+    }
+}
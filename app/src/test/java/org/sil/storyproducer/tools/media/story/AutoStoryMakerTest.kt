@@ -0,0 +1,43 @@
+package org.sil.storyproducer.tools.media.story
+
+import org.junit.Assert
+import org.junit.Test
+
+class AutoStoryMakerTest {
+
+    //The types the platform's MimeTypeMap gives these extensions.
+    private val typesByExtension = mapOf("mp4" to "video/mp4", "3gp" to "video/3gpp", "json" to "application/json")
+
+    /**
+     * The name ExternalStorageProvider gives a new document: unless the name's extension already
+     * means the document's type, the extension of the type is added to the whole name.
+     */
+    private fun providerName(displayName: String, mimeType: String): String {
+        val extension = displayName.substringAfterLast('.', "")
+        if (typesByExtension[extension] == mimeType) return displayName
+        val typeExtension = typesByExtension.entries.firstOrNull { it.value == mimeType }?.key ?: return displayName
+        return "$displayName.$typeExtension"
+    }
+
+    @Test
+    fun testPartialVideoName() {
+        Assert.assertEquals(".Lost_Coin.part.mp4", AutoStoryMaker.partialVideoName("Lost_Coin.mp4"))
+        Assert.assertEquals(".1_Lost.Coin_Fx.part.mp4", AutoStoryMaker.partialVideoName("1_Lost.Coin_Fx.mp4"))
+    }
+
+    @Test
+    fun testPartialVideoName_IsKeptByProvider() {
+        for (videoName in listOf("Lost_Coin.mp4", "1_Lost.Coin_FxPxMv.mp4")) {
+            val partialName = AutoStoryMaker.partialVideoName(videoName)
+            Assert.assertEquals(partialName, providerName(partialName, "video/mp4"))
+        }
+    }
+
+    @Test
+    fun testPartialVideoName_DiffersFromVideoName() {
+        //Renaming the partial video to its final name must be a change of name.
+        val partialName = AutoStoryMaker.partialVideoName("Lost_Coin.mp4")
+        Assert.assertNotEquals("Lost_Coin.mp4", partialName)
+        Assert.assertTrue(partialName.startsWith("."))
+    }
+}
@@ -0,0 +1,65 @@
+package org.sil.storyproducer.tools.media.story
+
+import org.junit.Assert
+import org.junit.Test
+
+class StoryTimelineTest {
+
+    private val pages = arrayOf(
+            StoryPage(mDuration = 1500000),
+            StoryPage(mDuration = 2500000),
+            StoryPage(mDuration = 500000))
+
+    //500ms audio transition and 750ms cross-fade, as used by AutoStoryMaker.
+    private val timeline = StoryTimeline(pages, 500000, 750000, 30)
+
+    @Test
+    fun testSlideBoundaries() {
+        Assert.assertEquals(0L, timeline.slideStartUs(0))
+        Assert.assertEquals(2000000L, timeline.slideStartUs(1))
+        Assert.assertEquals(5000000L, timeline.slideStartUs(2))
+        Assert.assertEquals(6000000L, timeline.durationUs)
+        Assert.assertEquals(88200L, timeline.slideStartSample(1, 44100))
+    }
+
+    @Test
+    fun testFirstFrameFadesInFromBlack() {
+        Assert.assertEquals(-1, timeline.baseSlide(0))
+        Assert.assertEquals(0, timeline.fadeSlide(0))
+        Assert.assertEquals(1f, timeline.fadeAlpha(0), 0.0001f)
+    }
+
+    @Test
+    fun testCrossFadeBetweenSlides() {
+        //Slide 0 starts fading out 375ms before its audio ends at 2s.
+        val before = timeline.frameAtTime(1600000)
+        Assert.assertEquals(0, timeline.baseSlide(before))
+        Assert.assertEquals(StoryTimeline.NO_SLIDE, timeline.fadeSlide(before))
+
+        val during = timeline.frameAtTime(2000000)
+        Assert.assertEquals(0, timeline.baseSlide(during))
+        Assert.assertEquals(1, timeline.fadeSlide(during))
+        Assert.assertEquals(0.5f, timeline.fadeAlpha(during), 0.01f)
+
+        val after = timeline.frameAtTime(2400000)
+        Assert.assertEquals(1, timeline.baseSlide(after))
+    }
+
+    @Test
+    fun testLastFrameIsBlack() {
+        val last = timeline.frameCount - 1
+        Assert.assertEquals(pages.size, timeline.baseSlide(last))
+        Assert.assertTrue(timeline.frameTimeUs(last) > timeline.durationUs)
+        Assert.assertTrue(timeline.frameTimeUs(last - 1) <= timeline.durationUs)
+    }
+
+    @Test
+    fun testKenBurnsPositionIsContinuousAcrossFadeIn() {
+        var lastPosition = -1f
+        for (frame in 0 until timeline.frameAtTime(1000000)) {
+            val position = if (timeline.baseSlide(frame) == 0) timeline.basePosition(frame) else timeline.fadePosition(frame)
+            Assert.assertTrue(position > lastPosition)
+            lastPosition = position
+        }
+    }
+}